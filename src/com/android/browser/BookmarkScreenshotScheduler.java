@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.browser;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.Images;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Saves screenshots of bookmarked pages for the bookmarks screen.
+ *
+ * A url is captured at most once per {@link #MIN_INTERVAL}. The screenshot
+ * still has to be drawn on the UI thread, but everything after that happens
+ * on the background thread: a 64 bit difference hash skips pages that look
+ * the same as last time, the bitmap is encoded once within
+ * {@link #MAX_BYTES}, and every matching bookmark and history row is updated
+ * in a single provider transaction.
+ */
+public class BookmarkScreenshotScheduler {
+
+    private static final String LOGTAG = "BookmarkScreenshots";
+
+    // Minimum time between screenshots of the same url
+    private static final long MIN_INTERVAL = 10 * 60 * 1000;
+    // Screenshots whose hashes differ in this many bits or less are the same
+    private static final int SAME_PAGE_DISTANCE = 4;
+    private static final int MAX_BYTES = 24 * 1024;
+    private static final int MAX_QUALITY = 85;
+    private static final int MIN_QUALITY = 40;
+    private static final int QUALITY_STEP = 15;
+    private static final int MAX_URLS = 128;
+
+    private static BookmarkScreenshotScheduler sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    // Only touched on the UI thread
+    private final LruCache<String, Long> mLastCaptured = new LruCache<String, Long>(MAX_URLS);
+    // Only touched on the background thread
+    private final LruCache<String, Long> mLastHash = new LruCache<String, Long>(MAX_URLS);
+    private final ByteArrayOutputStream mStream = new ByteArrayOutputStream(MAX_BYTES);
+
+    /* package */ static synchronized BookmarkScreenshotScheduler getInstance(Context c) {
+        if (sInstance == null) {
+            sInstance = new BookmarkScreenshotScheduler(c);
+        }
+        return sInstance;
+    }
+
+    private BookmarkScreenshotScheduler(Context c) {
+        mContext = c.getApplicationContext();
+        mHandler = new Handler(BackgroundHandler.getLooper());
+    }
+
+    /**
+     * Returns false if the url was captured too recently. Call before
+     * drawing the screenshot.
+     */
+    boolean shouldCapture(String url) {
+        Long last = mLastCaptured.get(url);
+        return last == null || SystemClock.uptimeMillis() - last >= MIN_INTERVAL;
+    }
+
+    /**
+     * Saves the screenshot for the bookmarks and history rows of the url and
+     * the url it was redirected from. Takes ownership of the bitmap.
+     */
+    void schedule(final String url, final String originalUrl, final Bitmap screenshot) {
+        mLastCaptured.put(url, SystemClock.uptimeMillis());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                save(url, originalUrl, screenshot);
+            }
+        });
+    }
+
+    private void save(String url, String originalUrl, Bitmap screenshot) {
+        long hash = differenceHash(screenshot);
+        Long last = mLastHash.get(url);
+        if (last != null && Long.bitCount(last ^ hash) <= SAME_PAGE_DISTANCE) {
+            screenshot.recycle();
+            return;
+        }
+        ContentResolver cr = mContext.getContentResolver();
+        LinkedHashSet<String> urls = new LinkedHashSet<String>();
+        Cursor cursor = null;
+        try {
+            cursor = Bookmarks.queryCombinedForUrl(cr, originalUrl, url);
+            while (cursor != null && cursor.moveToNext()) {
+                urls.add(cursor.getString(0));
+            }
+        } catch (IllegalStateException e) {
+            // Ignore
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        if (urls.isEmpty()) {
+            screenshot.recycle();
+            return;
+        }
+        byte[] thumbnail = encode(screenshot);
+        screenshot.recycle();
+        ArrayList<ContentProviderOperation> ops
+                = new ArrayList<ContentProviderOperation>(urls.size());
+        for (String u : urls) {
+            ops.add(ContentProviderOperation.newUpdate(Images.CONTENT_URI)
+                    .withValue(Images.URL, u)
+                    .withValue(Images.THUMBNAIL, thumbnail)
+                    .build());
+        }
+        try {
+            cr.applyBatch(BrowserContract.AUTHORITY, ops);
+            mLastHash.put(url, hash);
+        } catch (RemoteException e) {
+            Log.w(LOGTAG, "Failed to save screenshot", e);
+        } catch (OperationApplicationException e) {
+            Log.w(LOGTAG, "Failed to save screenshot", e);
+        } catch (SQLiteException e) {
+            // Possible when the user removes the bookmark being updated
+            Log.w(LOGTAG, "Failed to save screenshot", e);
+        }
+    }
+
+    /**
+     * Encodes at the highest quality that fits in {@link #MAX_BYTES}, or at
+     * {@link #MIN_QUALITY}. Screenshots are opaque, so JPEG loses nothing
+     * that PNG would keep.
+     */
+    private byte[] encode(Bitmap screenshot) {
+        for (int quality = MAX_QUALITY; ; quality -= QUALITY_STEP) {
+            mStream.reset();
+            screenshot.compress(Bitmap.CompressFormat.JPEG, quality, mStream);
+            if (mStream.size() <= MAX_BYTES || quality - QUALITY_STEP < MIN_QUALITY) {
+                return mStream.toByteArray();
+            }
+        }
+    }
+
+    /**
+     * Returns a 64 bit difference hash: the screenshot is shrunk to 9x8
+     * grayscale pixels and each bit says whether a pixel is brighter than
+     * its right neighbor. Similar looking pages get hashes that differ in
+     * few bits.
+     */
+    static long differenceHash(Bitmap screenshot) {
+        Bitmap small = Bitmap.createScaledBitmap(screenshot, 9, 8, true);
+        int[] pixels = new int[9 * 8];
+        small.getPixels(pixels, 0, 9, 0, 0, 9, 8);
+        if (small != screenshot) {
+            small.recycle();
+        }
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                hash <<= 1;
+                if (luminance(pixels[y * 9 + x]) > luminance(pixels[y * 9 + x + 1])) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static int luminance(int color) {
+        int r = (color >> 16) & 0xff;
+        int g = (color >> 8) & 0xff;
+        int b = color & 0xff;
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+}
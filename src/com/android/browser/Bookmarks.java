@@ -16,15 +16,17 @@
 
 package com.android.browser;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Combined;
@@ -35,6 +37,7 @@ import android.webkit.WebIconDatabase;
 import android.widget.Toast;
 
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 
 /**
  *  This class is purely to have a common place for adding/deleting bookmarks.
@@ -199,34 +202,49 @@ public class Bookmarks {
      */
     /* package */ static void updateFavicon(final ContentResolver cr,
             final String originalUrl, final String url, final Bitmap favicon) {
-        new AsyncTask<Void, Void, Void>() {
+        // Off the shared AsyncTask queue, and both urls in one transaction
+        BackgroundHandler.execute(new Runnable() {
             @Override
-            protected Void doInBackground(Void... unused) {
+            public void run() {
                 if (favicon.isRecycled()) {
                     Log.w(LOGTAG, "Cannot update favicon when Bitmap is already recycled");
                     // just return and update it next time
-                    return null;
+                    return;
                 }
 
                 final ByteArrayOutputStream os = new ByteArrayOutputStream();
                 favicon.compress(Bitmap.CompressFormat.PNG, 100, os);
+                byte[] data = os.toByteArray();
 
                 // The Images update will insert if it doesn't exist
-                ContentValues values = new ContentValues();
-                values.put(Images.FAVICON, os.toByteArray());
-                updateImages(cr, originalUrl, values);
-                updateImages(cr, url, values);
-                return null;
+                ArrayList<ContentProviderOperation> ops
+                        = new ArrayList<ContentProviderOperation>(2);
+                addImagesUpdate(ops, originalUrl, data);
+                if (!TextUtils.equals(removeQuery(url), removeQuery(originalUrl))) {
+                    addImagesUpdate(ops, url, data);
+                }
+                if (ops.isEmpty()) {
+                    return;
+                }
+                try {
+                    cr.applyBatch(BrowserContract.AUTHORITY, ops);
+                } catch (RemoteException e) {
+                    Log.w(LOGTAG, "Failed to update favicon", e);
+                } catch (OperationApplicationException e) {
+                    Log.w(LOGTAG, "Failed to update favicon", e);
+                }
             }
 
-            private void updateImages(final ContentResolver cr,
-                    final String url, ContentValues values) {
+            private void addImagesUpdate(ArrayList<ContentProviderOperation> ops,
+                    String url, byte[] data) {
                 String iurl = removeQuery(url);
                 if (!TextUtils.isEmpty(iurl)) {
-                    values.put(Images.URL, iurl);
-                    cr.update(BrowserContract.Images.CONTENT_URI, values, null, null);
+                    ops.add(ContentProviderOperation.newUpdate(Images.CONTENT_URI)
+                            .withValue(Images.URL, iurl)
+                            .withValue(Images.FAVICON, data)
+                            .build());
                 }
             }
-        }.execute();
+        });
     }
 }
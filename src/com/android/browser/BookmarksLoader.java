@@ -21,6 +21,8 @@ import android.content.CursorLoader;
 import android.net.Uri;
 import android.provider.BrowserContract.Bookmarks;
 
+import com.android.browser.provider.BrowserProvider2.ImageHashes;
+
 public class BookmarksLoader extends CursorLoader {
     public static final String ARG_ACCOUNT_TYPE = "acct_type";
     public static final String ARG_ACCOUNT_NAME = "acct_name";
@@ -34,6 +36,8 @@ public class BookmarksLoader extends CursorLoader {
     public static final int COLUMN_INDEX_IS_FOLDER = 6;
     public static final int COLUMN_INDEX_PARENT = 8;
     public static final int COLUMN_INDEX_TYPE = 9;
+    public static final int COLUMN_INDEX_THUMBNAIL_HASH = 10;
+    public static final int COLUMN_INDEX_FAVICON_HASH = 11;
 
     public static final String[] PROJECTION = new String[] {
         Bookmarks._ID, // 0
@@ -46,6 +50,8 @@ public class BookmarksLoader extends CursorLoader {
         Bookmarks.POSITION, // 7
         Bookmarks.PARENT, // 8
         Bookmarks.TYPE, // 9
+        ImageHashes.THUMBNAIL_HASH, // 10
+        ImageHashes.FAVICON_HASH, // 11
     };
 
     String mAccountType;
@@ -20,6 +20,8 @@ import android.app.Application;
 import android.util.Log;
 import android.webkit.CookieSyncManager;
 
+import com.android.browser.provider.MaintenanceJobService;
+
 public class Browser extends Application { 
 
     private final static String LOGTAG = "browser";
@@ -41,6 +43,12 @@ public class Browser extends Application {
         CookieSyncManager.createInstance(this);
         BrowserSettings.initialize(getApplicationContext());
         Preloader.initialize(getApplicationContext());
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                MaintenanceJobService.schedule(Browser.this);
+            }
+        });
     }
 
 }
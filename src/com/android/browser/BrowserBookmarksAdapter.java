@@ -36,6 +36,8 @@ public class BrowserBookmarksAdapter extends
 
     LayoutInflater mInflater;
     Context mContext;
+    int mThumbWidth;
+    int mThumbHeight;
 
     /**
      *  Create a new BrowserBookmarksAdapter.
@@ -46,6 +48,10 @@ public class BrowserBookmarksAdapter extends
         super(context, null);
         mInflater = LayoutInflater.from(context);
         mContext = context;
+        mThumbWidth = context.getResources()
+                .getDimensionPixelSize(R.dimen.bookmarkThumbnailWidth);
+        mThumbHeight = context.getResources()
+                .getDimensionPixelSize(R.dimen.bookmarkThumbnailHeight);
     }
 
     @Override
@@ -108,20 +114,35 @@ public class BrowserBookmarksAdapter extends
         if (item == null) {
             item = new BrowserBookmarksAdapterItem();
         }
-        Bitmap thumbnail = item.thumbnail != null ? item.thumbnail.getBitmap() : null;
-        thumbnail = BrowserBookmarksPage.getBitmap(c,
-                BookmarksLoader.COLUMN_INDEX_THUMBNAIL, thumbnail);
+        // Each row holds a reference on the thumbnail it shows, released
+        // when the row is reused or dropped, which lets the cache decode into
+        // it again. Rows are only handed back here once no view draws them.
+        ImageCache cache = ImageCache.getInstance();
+        Bitmap thumbnail = cache.acquireBitmap(c,
+                BookmarksLoader.COLUMN_INDEX_THUMBNAIL,
+                BookmarksLoader.COLUMN_INDEX_THUMBNAIL_HASH, mThumbWidth, mThumbHeight);
+        Bitmap previous = item.thumbnail != null ? item.thumbnail.getBitmap() : null;
         item.has_thumbnail = thumbnail != null;
-        if (thumbnail != null
-                && (item.thumbnail == null || item.thumbnail.getBitmap() != thumbnail)) {
+        if (thumbnail == null) {
+            item.thumbnail = null;
+        } else if (previous != thumbnail) {
             item.thumbnail = new BitmapDrawable(mContext.getResources(), thumbnail);
         }
+        cache.releaseBitmap(previous);
         item.is_folder = c.getInt(BookmarksLoader.COLUMN_INDEX_IS_FOLDER) != 0;
         item.title = getTitle(c);
         item.url = c.getString(BookmarksLoader.COLUMN_INDEX_URL);
         return item;
     }
 
+    @Override
+    public void releaseRowObject(BrowserBookmarksAdapterItem item) {
+        if (item.thumbnail != null) {
+            ImageCache.getInstance().releaseBitmap(item.thumbnail.getBitmap());
+            item.thumbnail = null;
+        }
+    }
+
     @Override
     public BrowserBookmarksAdapterItem getLoadingObject() {
         BrowserBookmarksAdapterItem item = new BrowserBookmarksAdapterItem();
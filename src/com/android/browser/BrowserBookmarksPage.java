@@ -202,8 +202,12 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
             Controller.sharePage(activity,
                     cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE),
                     cursor.getString(BookmarksLoader.COLUMN_INDEX_URL),
-                    getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_FAVICON),
-                    getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_THUMBNAIL));
+                    ImageCache.getInstance().getBitmap(cursor,
+                            BookmarksLoader.COLUMN_INDEX_FAVICON,
+                            BookmarksLoader.COLUMN_INDEX_FAVICON_HASH),
+                    ImageCache.getInstance().getBitmap(cursor,
+                            BookmarksLoader.COLUMN_INDEX_THUMBNAIL,
+                            BookmarksLoader.COLUMN_INDEX_THUMBNAIL_HASH));
             break;
         }
         case R.id.copy_url_context_menu_id:
@@ -316,7 +320,10 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
         } else {
             String url = cursor.getString(BookmarksLoader.COLUMN_INDEX_URL);
             item.setUrl(url);
-            Bitmap bitmap = getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_FAVICON);
+            int size = getResources().getDimensionPixelSize(R.dimen.list_favicon_size);
+            Bitmap bitmap = ImageCache.getInstance().getBitmap(cursor,
+                    BookmarksLoader.COLUMN_INDEX_FAVICON,
+                    BookmarksLoader.COLUMN_INDEX_FAVICON_HASH, size, size);
             item.setFavicon(bitmap);
         }
     }
@@ -516,10 +523,11 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
                 cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE));
         item.putString(BrowserContract.Bookmarks.URL,
                 cursor.getString(BookmarksLoader.COLUMN_INDEX_URL));
-        byte[] data = cursor.getBlob(BookmarksLoader.COLUMN_INDEX_FAVICON);
-        if (data != null) {
-            item.putParcelable(BrowserContract.Bookmarks.FAVICON,
-                    BitmapFactory.decodeByteArray(data, 0, data.length));
+        // Full size, AddBookmarkPage may store it with a new bookmark
+        Bitmap favicon = ImageCache.getInstance().getBitmap(cursor,
+                BookmarksLoader.COLUMN_INDEX_FAVICON, BookmarksLoader.COLUMN_INDEX_FAVICON_HASH);
+        if (favicon != null) {
+            item.putParcelable(BrowserContract.Bookmarks.FAVICON, favicon);
         }
         item.putLong(BrowserContract.Bookmarks._ID,
                 cursor.getLong(BookmarksLoader.COLUMN_INDEX_ID));
@@ -33,13 +33,17 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.database.DataSetObserver;
-import android.graphics.BitmapFactory;
+import android.database.sqlite.SQLiteException;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
+import android.provider.BaseColumns;
 import android.provider.Browser;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Combined;
+import android.provider.BrowserContract.History;
+import android.text.TextUtils;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
@@ -61,6 +65,9 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.BrowserProvider2.ImageHashes;
+
 /**
  * Activity for displaying the browser's history, divided into
  * days of viewing.
@@ -68,6 +75,8 @@ import android.widget.Toast;
 public class BrowserHistoryPage extends Fragment
         implements LoaderCallbacks<Cursor>, OnChildClickListener {
 
+    private static final String LOGTAG = "BrowserHistoryPage";
+
     static final int LOADER_HISTORY = 1;
     static final int LOADER_MOST_VISITED = 2;
 
@@ -84,6 +93,11 @@ public class BrowserHistoryPage extends Fragment
 
     private View mRoot;
 
+    static interface BinQuery {
+        static final int INDEX_BIN = 0;
+        static final int INDEX_COUNT = 1;
+    }
+
     static interface HistoryQuery {
         static final String[] PROJECTION = new String[] {
                 Combined._ID, // 0
@@ -93,6 +107,7 @@ public class BrowserHistoryPage extends Fragment
                 Combined.FAVICON, // 4
                 Combined.VISITS, // 5
                 Combined.IS_BOOKMARK, // 6
+                ImageHashes.FAVICON_HASH, // 7
         };
 
         static final int INDEX_ID = 0;
@@ -102,8 +117,14 @@ public class BrowserHistoryPage extends Fragment
         static final int INDEX_FAVICON = 4;
         static final int INDEX_VISITS = 5;
         static final int INDEX_IS_BOOKMARK = 6;
+        static final int INDEX_FAVICON_HASH = 7;
     }
 
+    static final String PAGE_SELECTION = History.VISITS + " > 0 AND "
+            + History.DATE_LAST_VISITED + " > ? AND " + History.DATE_LAST_VISITED + " <= ?";
+    static final String PAGE_SORT = History.DATE_LAST_VISITED + " DESC, "
+            + History._ID + " DESC";
+
     private void copy(CharSequence text) {
         ClipboardManager cm = (ClipboardManager) getActivity().getSystemService(
                 Context.CLIPBOARD_SERVICE);
@@ -116,10 +137,17 @@ public class BrowserHistoryPage extends Fragment
 
         switch (id) {
             case LOADER_HISTORY: {
-                String sort = Combined.DATE_LAST_VISITED + " DESC";
-                String where = Combined.VISITS + " > 0";
-                CursorLoader loader = new CursorLoader(getActivity(), combinedBuilder.build(),
-                        HistoryQuery.PROJECTION, where, null, sort);
+                // Only the size of each day, the adapter pages in the rows
+                Uri uri = History.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(BrowserProvider2.PARAM_GROUP_BY, "bin")
+                        .build();
+                String[] projection = new String[] {
+                        mAdapter.getBinExpression(History.DATE_LAST_VISITED) + " AS bin",
+                        "COUNT(*) AS " + BaseColumns._COUNT,
+                };
+                String where = History.VISITS + " > 0";
+                CursorLoader loader = new CursorLoader(getActivity(), uri,
+                        projection, where, null, null);
                 return loader;
             }
 
@@ -146,7 +174,7 @@ public class BrowserHistoryPage extends Fragment
     }
 
     void checkIfEmpty() {
-        if (mAdapter.mMostVisited != null && mAdapter.mHistoryCursor != null) {
+        if (mAdapter.mMostVisited != null && mAdapter.mDataValid) {
             // Both cursors have loaded - check to see if we have data
             if (mAdapter.isEmpty()) {
                 mRoot.findViewById(R.id.history).setVisibility(View.GONE);
@@ -162,7 +190,7 @@ public class BrowserHistoryPage extends Fragment
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         switch (loader.getId()) {
             case LOADER_HISTORY: {
-                mAdapter.changeCursor(data);
+                mAdapter.changeBinCounts(data, BinQuery.INDEX_BIN, BinQuery.INDEX_COUNT);
                 if (!mAdapter.isEmpty() && mGroupList != null
                         && mGroupList.getCheckedItemPosition() == ListView.INVALID_POSITION) {
                     selectGroup(0);
@@ -264,22 +292,32 @@ public class BrowserHistoryPage extends Fragment
         @Override
         public void onItemClick(
                 AdapterView<?> parent, View view, int position, long id) {
-            mCallback.openUrl(((HistoryItem) view).getUrl());
+            openUrl(((HistoryItem) view).getUrl());
         }
     };
 
     @Override
     public boolean onChildClick(ExpandableListView parent, View view,
             int groupPosition, int childPosition, long id) {
-        mCallback.openUrl(((HistoryItem) view).getUrl());
+        openUrl(((HistoryItem) view).getUrl());
         return true;
     }
 
+    private void openUrl(String url) {
+        // Empty until the item's page is loaded
+        if (!TextUtils.isEmpty(url)) {
+            mCallback.openUrl(url);
+        }
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
         getLoaderManager().destroyLoader(LOADER_HISTORY);
         getLoaderManager().destroyLoader(LOADER_MOST_VISITED);
+        if (mAdapter != null) {
+            mAdapter.changeBinCounts(null, 0, 0);
+        }
     }
 
     @Override
@@ -520,18 +558,32 @@ public class BrowserHistoryPage extends Fragment
 
     private class HistoryAdapter extends DateSortedExpandableListAdapter {
 
-        private Cursor mMostVisited, mHistoryCursor;
+        private Cursor mMostVisited;
         Drawable mFaviconBackground;
+        private final ContentResolver mResolver;
+        private final int mFaviconSize;
 
         HistoryAdapter(Context context) {
-            super(context, HistoryQuery.INDEX_DATE_LAST_VISITED);
+            super(context);
             mFaviconBackground = BookmarkUtils.createListFaviconBackground(context);
+            mResolver = context.getContentResolver();
+            mFaviconSize = context.getResources()
+                    .getDimensionPixelSize(R.dimen.list_favicon_size);
         }
 
         @Override
-        public void changeCursor(Cursor cursor) {
-            mHistoryCursor = cursor;
-            super.changeCursor(cursor);
+        Cursor queryPage(long after, long before, int offset, int limit) {
+            Uri uri = History.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(BrowserContract.PARAM_LIMIT, offset + "," + limit)
+                    .build();
+            try {
+                return mResolver.query(uri, HistoryQuery.PROJECTION, PAGE_SELECTION,
+                        new String[] { Long.toString(after), Long.toString(before) },
+                        PAGE_SORT);
+            } catch (SQLiteException e) {
+                Log.w(LOGTAG, "Failed to load history", e);
+                return null;
+            }
         }
 
         void changeMostVisitedCursor(Cursor cursor) {
@@ -555,7 +607,7 @@ public class BrowserHistoryPage extends Fragment
                 Cursor cursor = getCursor(groupPosition);
                 return cursor.getLong(HistoryQuery.INDEX_ID);
             }
-            return 0;
+            return super.getChildId(groupPosition, childPosition);
         }
 
         @Override
@@ -592,7 +644,7 @@ public class BrowserHistoryPage extends Fragment
             if (groupPosition >= super.getGroupCount()) {
                 return mMostVisited;
             }
-            return mHistoryCursor;
+            return getCursor();
         }
 
         @Override
@@ -645,8 +697,12 @@ public class BrowserHistoryPage extends Fragment
                 item = (HistoryItem) convertView;
             }
 
-            // Bail early if the Cursor is closed.
+            // Blank until the page is loaded, or if the Cursor is closed.
             if (!moveCursorToChildPosition(groupPosition, childPosition)) {
+                item.setName("");
+                item.setUrl("");
+                item.setFavicon(null);
+                item.setIsBookmark(false);
                 return item;
             }
 
@@ -654,13 +710,9 @@ public class BrowserHistoryPage extends Fragment
             item.setName(cursor.getString(HistoryQuery.INDEX_TITE));
             String url = cursor.getString(HistoryQuery.INDEX_URL);
             item.setUrl(url);
-            byte[] data = cursor.getBlob(HistoryQuery.INDEX_FAVICON);
-            if (data != null) {
-                item.setFavicon(BitmapFactory.decodeByteArray(data, 0,
-                        data.length));
-            } else {
-                item.setFavicon(null);
-            }
+            item.setFavicon(ImageCache.getInstance().getBitmap(cursor,
+                    HistoryQuery.INDEX_FAVICON, HistoryQuery.INDEX_FAVICON_HASH,
+                    mFaviconSize, mFaviconSize));
             item.setIsBookmark(cursor.getInt(HistoryQuery.INDEX_IS_BOOKMARK) == 1);
             return item;
         }
@@ -624,6 +624,22 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         return mPrefs.getBoolean(PREF_OPEN_IN_BACKGROUND, false);
     }
 
+    /**
+     * If true, background tabs get their WebViews at startup on UIs that
+     * show every tab, as tablets do, rather than when they are first shown.
+     */
+    public boolean restoreTabsEagerly() {
+        return mPrefs.getBoolean(PREF_EAGER_TAB_RESTORE, true);
+    }
+
+    /**
+     * If true, the most recently used background tab gets its WebView
+     * once the foreground page has loaded and the UI is idle.
+     */
+    public boolean warmUpTabs() {
+        return mPrefs.getBoolean(PREF_WARM_UP_TABS, true);
+    }
+
     public boolean enableJavascript() {
         return mPrefs.getBoolean(PREF_ENABLE_JAVASCRIPT, true);
     }
@@ -17,13 +17,13 @@
 package com.android.browser;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DownloadManager;
 import android.app.ProgressDialog;
 import android.content.ClipboardManager;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
@@ -33,9 +33,7 @@ import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.database.ContentObserver;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.net.Uri;
@@ -50,7 +48,6 @@ import android.os.PowerManager.WakeLock;
 import android.preference.PreferenceActivity;
 import android.provider.Browser;
 import android.provider.BrowserContract;
-import android.provider.BrowserContract.Images;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Intents.Insert;
 import android.speech.RecognizerIntent;
@@ -85,10 +82,10 @@ import android.widget.Toast;
 
 import com.android.browser.IntentHandler.UrlData;
 import com.android.browser.UI.ComboViews;
+import com.android.browser.homepages.MostVisitedCache;
 import com.android.browser.provider.BrowserProvider2.Thumbnails;
 import com.android.browser.provider.SnapshotProvider.Snapshots;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -309,6 +306,8 @@ public class Controller
     private void onPreloginFinished(Bundle icicle, Intent intent, long currentTabId,
             boolean restoreIncognitoTabs) {
         if (currentTabId == -1) {
+            // Nothing was restored, so the old tab ids mean nothing anymore
+            mCrashRecoveryHandler.discardState();
             BackgroundHandler.execute(new PruneThumbnails(mActivity, null));
             if (intent == null) {
                 // This won't happen under common scenarios. The icicle is
@@ -340,8 +339,9 @@ public class Controller
             }
             mUi.updateTabs(mTabControl.getTabs());
         } else {
+            // Background tabs stay placeholders until they are first shown
             mTabControl.restoreState(icicle, currentTabId, restoreIncognitoTabs,
-                    mUi.needsRestoreAllTabs());
+                    mUi.needsRestoreAllTabs() && mSettings.restoreTabsEagerly());
             List<Tab> tabs = mTabControl.getTabs();
             ArrayList<Long> restoredTabs = new ArrayList<Long>(tabs.size());
             for (Tab t : tabs) {
@@ -385,18 +385,11 @@ public class Controller
             if (mIds == null || mIds.size() == 0) {
                 cr.delete(Thumbnails.CONTENT_URI, null, null);
             } else {
-                int length = mIds.size();
-                StringBuilder where = new StringBuilder();
-                where.append(Thumbnails._ID);
-                where.append(" not in (");
-                for (int i = 0; i < length; i++) {
-                    where.append(mIds.get(i));
-                    if (i < (length - 1)) {
-                        where.append(",");
-                    }
-                }
-                where.append(")");
-                cr.delete(Thumbnails.CONTENT_URI, where.toString(), null);
+                Uri uri = Thumbnails.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(Thumbnails.QUERY_PARAMETER_KEEP,
+                                TextUtils.join(",", mIds))
+                        .build();
+                cr.delete(uri, null, null);
             }
         }
     }
@@ -692,6 +685,19 @@ public class Controller
         return saveState;
     }
 
+    /**
+     * Save the tab positions and the state of at most maxTabs tabs that
+     * changed since they were last saved. Does not write the state to disk.
+     * @param outState Receives the partial state, see
+     *        {@link TabControl#saveDirtyState(Bundle, int)}
+     * @return true if there are still tabs left to save
+     */
+    /* package */ boolean createSaveStateDelta(Bundle outState, int maxTabs) {
+        boolean remaining = mTabControl.saveDirtyState(outState, maxTabs);
+        outState.putSerializable("lastActiveDate", Calendar.getInstance());
+        return remaining;
+    }
+
     @Override
     public void onResume() {
         if (!mActivityPaused) {
@@ -785,6 +791,13 @@ public class Controller
         mTabControl.freeMemory();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        mTabControl.trimMemory(level);
+        ImageCache.getInstance().trimMemory(level);
+        MostVisitedCache.trimMemory(level);
+    }
+
     @Override
     public boolean shouldShowErrorConsole() {
         return mShouldShowErrorConsole;
@@ -866,6 +879,9 @@ public class Controller
     @Override
     public void onPageFinished(Tab tab) {
         mCrashRecoveryHandler.backupState();
+        if (tab.inForeground() && mSettings.warmUpTabs()) {
+            mTabControl.scheduleWarmUp();
+        }
         mUi.onTabDataChanged(tab);
 
         // Performance probe
@@ -993,11 +1009,12 @@ public class Controller
 
     @Override
     public void getVisitedHistory(final ValueCallback<String[]> callback) {
+        final VisitedLinkStore store = VisitedLinkStore.getInstance(mActivity);
         AsyncTask<Void, Void, String[]> task =
                 new AsyncTask<Void, Void, String[]>() {
             @Override
             public String[] doInBackground(Void... unused) {
-                return Browser.getVisitedHistory(mActivity.getContentResolver());
+                return store.getUrls();
             }
             @Override
             public void onPostExecute(String[] result) {
@@ -1585,6 +1602,7 @@ public class Controller
         nav.setEnabled(isNavDump);
 
         boolean showDebugSettings = mSettings.isDebugEnabled();
+        menu.findItem(R.id.dump_tabs_menu_id).setVisible(showDebugSettings);
         final MenuItem uaSwitcher = menu.findItem(R.id.ua_desktop_menu_id);
         uaSwitcher.setChecked(isDesktopUa);
 
@@ -1703,6 +1721,10 @@ public class Controller
                 getCurrentTopWebView().debugDump();
                 break;
 
+            case R.id.dump_tabs_menu_id:
+                showEvictionState();
+                break;
+
             case R.id.zoom_in_menu_id:
                 getCurrentTopWebView().zoomIn();
                 break;
@@ -1755,6 +1777,16 @@ public class Controller
         web.loadUrl(web.getOriginalUrl());
     }
 
+    private void showEvictionState() {
+        String state = mTabControl.dumpEvictionState();
+        Log.i(LOGTAG, "Tab eviction state:\n" + state);
+        new AlertDialog.Builder(mActivity)
+                .setTitle(R.string.dump_tabs)
+                .setMessage(state)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
     @Override
     public void findOnPage() {
         getCurrentTopWebView().showFindDialog(null, true);
@@ -2083,45 +2115,17 @@ public class Controller
             return;
         }
 
+        BookmarkScreenshotScheduler scheduler
+                = BookmarkScreenshotScheduler.getInstance(mActivity);
+        if (!scheduler.shouldCapture(url)) {
+            return;
+        }
         final Bitmap bm = createScreenshot(view, getDesiredThumbnailWidth(mActivity),
                 getDesiredThumbnailHeight(mActivity));
         if (bm == null) {
             return;
         }
-
-        final ContentResolver cr = mActivity.getContentResolver();
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... unused) {
-                Cursor cursor = null;
-                try {
-                    // TODO: Clean this up
-                    cursor = Bookmarks.queryCombinedForUrl(cr, originalUrl, url);
-                    if (cursor != null && cursor.moveToFirst()) {
-                        final ByteArrayOutputStream os =
-                                new ByteArrayOutputStream();
-                        bm.compress(Bitmap.CompressFormat.PNG, 100, os);
-
-                        ContentValues values = new ContentValues();
-                        values.put(Images.THUMBNAIL, os.toByteArray());
-
-                        do {
-                            values.put(Images.URL, cursor.getString(0));
-                            cr.update(Images.CONTENT_URI, values, null, null);
-                        } while (cursor.moveToNext());
-                    }
-                } catch (IllegalStateException e) {
-                    // Ignore
-                } catch (SQLiteException s) {
-                    // Added for possible error when user tries to remove the same bookmark
-                    // that is being updated with a screen shot
-                    Log.w(LOGTAG, "Error when running updateScreenshot ", s);
-                } finally {
-                    if (cursor != null) cursor.close();
-                }
-                return null;
-            }
-        }.execute();
+        scheduler.schedule(url, originalUrl, bm);
     }
 
     private class Copy implements OnMenuItemClickListener {
@@ -18,27 +18,60 @@ package com.android.browser;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Parcel;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 
+/**
+ * Keeps the tab state on disk so that it can be restored after a crash.
+ *
+ * The state is kept as a full snapshot in {@link #STATE_FILE} plus a journal
+ * of deltas in {@link #JOURNAL_FILE}. A delta has the same layout as the full
+ * state but only carries the tabs that changed since the last backup, so each
+ * backup only serializes a bounded number of tabs on the UI thread. The
+ * journal is folded back into the snapshot on the background thread once it
+ * grows past {@link #MAX_JOURNAL_RECORDS} records or the size of the snapshot.
+ *
+ * The snapshot keeps every tab's state in its own record behind a header
+ * holding the tab positions and a summary of each tab. On recovery the file
+ * is mapped, and only the header and the current tab are decoded up front.
+ * The other tabs start out with their summary, marked with
+ * {@link #PARTIAL_STATE}, and get the rest through
+ * {@link #resolveTabState(Bundle, boolean)} when their WebView is restored.
+ * Tabs hibernated by {@link TabHibernator} hold the same kind of summary.
+ */
 public class CrashRecoveryHandler {
 
     private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
     private static final String LOGTAG = "BrowserCrashRecovery";
     private static final String STATE_FILE = "browser_state.parcel";
+    private static final String JOURNAL_FILE = "browser_state.delta";
+    private static final int SNAPSHOT_MAGIC = 0x42525331; // "BRS1"
     private static final int BUFFER_SIZE = 4096;
     private static final long BACKUP_DELAY = 500; // 500ms between writes
+    // Upper bound on the number of tabs serialized per backup
+    private static final int MAX_TABS_PER_BACKUP = 4;
+    private static final int MAX_JOURNAL_RECORDS = 32;
+    // Anything bigger than this is a torn or corrupt record
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
     /* This is the duration for which we will prompt to restore
      * instead of automatically restoring. The first time the browser crashes,
      * we will automatically restore. If we then crash again within XX minutes,
@@ -46,7 +79,13 @@ public class CrashRecoveryHandler {
      */
     private static final long PROMPT_INTERVAL = 5 * 60 * 1000; // 5 minutes
 
-    private static final int MSG_WRITE_STATE = 1;
+    /**
+     * Set in a tab state that only holds the summary read from the snapshot
+     * header.
+     */
+    static final String PARTIAL_STATE = "partialState";
+
+    private static final int MSG_WRITE_DELTA = 1;
     private static final int MSG_CLEAR_STATE = 2;
     private static final int MSG_PRELOAD_STATE = 3;
 
@@ -60,6 +99,15 @@ public class CrashRecoveryHandler {
     private boolean mDidPreload = false;
     private Bundle mRecoveryState = null;
 
+    // What is on disk, snapshot and journal merged. Only touched with the
+    // lock held, null until the first delta is written.
+    private Bundle mBackupState;
+    private int mJournalRecords;
+    private long mJournalSize;
+    private long mSnapshotSize;
+    // The snapshot the partial tab states were read from
+    private volatile MappedSnapshot mRestoredSnapshot;
+
     public static CrashRecoveryHandler initialize(Controller controller) {
         if (sInstance == null) {
             sInstance = new CrashRecoveryHandler(controller);
@@ -82,18 +130,15 @@ public class CrashRecoveryHandler {
             @Override
             public void handleMessage(Message msg) {
                 switch (msg.what) {
-                case MSG_WRITE_STATE:
-                    Bundle saveState = (Bundle) msg.obj;
-                    writeState(saveState);
+                case MSG_WRITE_DELTA:
+                    Bundle delta = (Bundle) msg.obj;
+                    writeDelta(delta);
                     break;
                 case MSG_CLEAR_STATE:
                     if (LOGV_ENABLED) {
                         Log.v(LOGTAG, "Clearing crash recovery state");
                     }
-                    File state = new File(mContext.getCacheDir(), STATE_FILE);
-                    if (state.exists()) {
-                        state.delete();
-                    }
+                    deleteState();
                     break;
                 case MSG_PRELOAD_STATE:
                     mRecoveryState = loadCrashState();
@@ -117,11 +162,17 @@ public class CrashRecoveryHandler {
         @Override
         public void run() {
             try {
-                final Bundle state = mController.createSaveState();
-                Message.obtain(mBackgroundHandler, MSG_WRITE_STATE, state)
+                final Bundle delta = new Bundle();
+                boolean remaining = mController.createSaveStateDelta(delta,
+                        MAX_TABS_PER_BACKUP);
+                Message.obtain(mBackgroundHandler, MSG_WRITE_DELTA, delta)
                         .sendToTarget();
                 // Remove any queued up saves
                 mForegroundHandler.removeCallbacks(mCreateState);
+                if (remaining) {
+                    // Pick up the rest of the changed tabs on the next pass
+                    mForegroundHandler.postDelayed(mCreateState, BACKUP_DELAY);
+                }
             } catch (Throwable t) {
                 Log.w(LOGTAG, "Failed to save state", t);
                 return;
@@ -135,6 +186,14 @@ public class CrashRecoveryHandler {
         updateLastRecovered(0);
     }
 
+    /**
+     * Deletes the saved state without touching the restore prompt timing,
+     * used when the saved state wasn't restored.
+     */
+    void discardState() {
+        mBackgroundHandler.sendEmptyMessage(MSG_CLEAR_STATE);
+    }
+
     private boolean shouldRestore() {
         BrowserSettings browserSettings = BrowserSettings.getInstance();
         long lastRecovered = browserSettings.getLastRecovered();
@@ -154,38 +213,236 @@ public class CrashRecoveryHandler {
         }
         BrowserSettings browserSettings = BrowserSettings.getInstance();
         browserSettings.setLastRunPaused(false);
-        Bundle state = null;
-        Parcel parcel = Parcel.obtain();
-        FileInputStream fin = null;
         try {
-            File stateFile = new File(mContext.getCacheDir(), STATE_FILE);
-            fin = new FileInputStream(stateFile);
-            ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int read;
-            while ((read = fin.read(buffer)) > 0) {
-                dataStream.write(buffer, 0, read);
-            }
-            byte[] data = dataStream.toByteArray();
-            parcel.unmarshall(data, 0, data.length);
-            parcel.setDataPosition(0);
-            state = parcel.readBundle();
+            Bundle state = readState(true);
             if (state != null && !state.isEmpty()) {
                 return state;
             }
-        } catch (FileNotFoundException e) {
-            // No state to recover
         } catch (Throwable e) {
             Log.w(LOGTAG, "Failed to recover state!", e);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the snapshot and replays the journal over it.
+     * @param partial Only decode the current tab, see {@link #PARTIAL_STATE}
+     * @return The merged state, or null if there is none
+     */
+    private Bundle readState(boolean partial) throws IOException {
+        Bundle state = null;
+        File stateFile = new File(mContext.getCacheDir(), STATE_FILE);
+        try {
+            state = readSnapshot(stateFile, partial);
+        } catch (FileNotFoundException e) {
+            // No snapshot, there may still be a journal
+        }
+        File journal = new File(mContext.getCacheDir(), JOURNAL_FILE);
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(journal), BUFFER_SIZE));
+        } catch (FileNotFoundException e) {
+            return state;
+        }
+        int records = 0;
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    Log.w(LOGTAG, "Corrupt journal record, ignoring the rest");
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                Bundle delta = unmarshall(record);
+                if (state == null) {
+                    state = new Bundle();
+                }
+                mergeState(state, delta);
+                records++;
+            }
+        } catch (EOFException e) {
+            // End of the journal, or a record torn by a crash
+        } finally {
+            in.close();
+        }
+        if (LOGV_ENABLED) {
+            Log.v(LOGTAG, "Replayed " + records + " journal records");
+        }
+        return state;
+    }
+
+    private Bundle readSnapshot(File file, boolean partial) throws IOException {
+        FileInputStream fin = new FileInputStream(file);
+        ByteBuffer buffer;
+        try {
+            FileChannel channel = fin.getChannel();
+            // The mapping stays valid after the file is closed or replaced
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            fin.close();
+        }
+        if (buffer.remaining() < 4 || buffer.getInt(0) != SNAPSHOT_MAGIC) {
+            // Written as a single parcel by an older version
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return unmarshall(data);
+        }
+        buffer.position(4);
+        Bundle state = unmarshall(readRecord(buffer));
+        long currentId = state.getLong(TabControl.CURRENT, -1);
+        MappedSnapshot snapshot = new MappedSnapshot(buffer);
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            long id = buffer.getLong();
+            int offset = buffer.position();
+            if (partial && id != currentId) {
+                snapshot.mOffsets.put(id, offset);
+                buffer.position(offset + 4 + buffer.getInt(offset));
+            } else {
+                state.putBundle(Long.toString(id), unmarshall(readRecord(buffer)));
+            }
+        }
+        if (partial) {
+            mRestoredSnapshot = snapshot;
+        }
+        return state;
+    }
+
+    private static byte[] readRecord(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupt snapshot record");
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+
+    /**
+     * Returns the full state for a tab state marked with
+     * {@link #PARTIAL_STATE}, otherwise returns state. The rest of the state
+     * comes from the hibernated tabs, or else from the snapshot the tabs were
+     * restored from.
+     * @param rehydrate True if the tab is being shown, which ends its
+     *        hibernation. Otherwise the hibernated state is only read.
+     */
+    Bundle resolveTabState(Bundle state, boolean rehydrate) {
+        if (state == null || !state.getBoolean(PARTIAL_STATE)) {
+            return state;
+        }
+        long id = state.getLong(Tab.ID);
+        TabHibernator hibernator = TabHibernator.getInstance(mContext);
+        Bundle full = rehydrate ? hibernator.rehydrate(id) : hibernator.read(id);
+        if (full != null && !rehydrate) {
+            full.remove(TabHibernator.FAVICON);
+        }
+        MappedSnapshot snapshot = mRestoredSnapshot;
+        if (full == null && snapshot != null) {
+            try {
+                full = snapshot.read(id);
+            } catch (Throwable e) {
+                Log.w(LOGTAG, "Failed to read tab state", e);
+            }
+        }
+        if (full == null) {
+            // Only the summary survived, that is still enough to reload
+            full = new Bundle();
+        }
+        // The summary may have been changed since, it wins
+        for (String key : summarize(full).keySet()) {
+            full.remove(key);
+        }
+        full.putAll(state);
+        full.remove(PARTIAL_STATE);
+        return full;
+    }
+
+    /**
+     * Returns the Tab's own fields of a tab state, leaving out the WebView
+     * state.
+     */
+    static Bundle summarize(Bundle tabState) {
+        Bundle summary = new Bundle();
+        for (String key : tabState.keySet()) {
+            Object value = tabState.get(key);
+            if (value instanceof String) {
+                summary.putString(key, (String) value);
+            } else if (value instanceof Boolean) {
+                summary.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Long) {
+                summary.putLong(key, (Long) value);
+            } else if (value instanceof Integer) {
+                summary.putInt(key, (Integer) value);
+            }
+        }
+        summary.putBoolean(PARTIAL_STATE, true);
+        return summary;
+    }
+
+    private static class MappedSnapshot {
+
+        final ByteBuffer mBuffer;
+        final HashMap<Long, Integer> mOffsets = new HashMap<Long, Integer>();
+
+        MappedSnapshot(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        Bundle read(long id) throws IOException {
+            Integer offset = mOffsets.get(id);
+            if (offset == null) {
+                return null;
+            }
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(offset);
+            return unmarshall(readRecord(buffer));
+        }
+    }
+
+    private static Bundle unmarshall(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle();
         } finally {
             parcel.recycle();
-            if (fin != null) {
-                try {
-                    fin.close();
-                } catch (IOException e) { }
+        }
+    }
+
+    private static byte[] marshall(Bundle state) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            state.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Applies a delta written by {@link Controller#createSaveStateDelta} to
+     * state. Null tab states are removed, as are tabs that are no longer in
+     * the tab positions.
+     */
+    static void mergeState(Bundle state, Bundle delta) {
+        state.putAll(delta);
+        long[] ids = state.getLongArray(TabControl.POSITIONS);
+        HashSet<String> keep = new HashSet<String>();
+        if (ids != null) {
+            for (long id : ids) {
+                keep.add(Long.toString(id));
+            }
+        }
+        for (String key : new ArrayList<String>(state.keySet())) {
+            Object value = state.get(key);
+            if (value == null
+                    || (value instanceof Bundle && !keep.contains(key))) {
+                state.remove(key);
             }
         }
-        return null;
     }
 
     public void startRecovery(Intent intent) {
@@ -216,34 +473,154 @@ public class CrashRecoveryHandler {
     }
 
     /**
-     * Writes the crash recovery state to a file synchronously.
-     * Errors are swallowed, but logged.
+     * Appends a delta to the journal, compacting it into the snapshot when it
+     * gets too long. Errors are swallowed, but logged.
+     */
+    synchronized void writeDelta(Bundle delta) {
+        resolvePartialStates(delta);
+        if (mBackupState == null) {
+            try {
+                mBackupState = readState(false);
+            } catch (Throwable e) {
+                Log.w(LOGTAG, "Failed to read existing state", e);
+            }
+            if (mBackupState == null) {
+                mBackupState = new Bundle();
+            }
+            // Start this run with a fresh journal
+            mJournalRecords = MAX_JOURNAL_RECORDS;
+        }
+        try {
+            byte[] record = marshall(delta);
+            // Merge a copy so that we never hold on to the tabs' Bundles
+            mergeState(mBackupState, unmarshall(record));
+            if (mJournalRecords >= MAX_JOURNAL_RECORDS
+                    || mJournalSize + record.length > mSnapshotSize) {
+                compact();
+                return;
+            }
+            File journal = new File(mContext.getCacheDir(), JOURNAL_FILE);
+            DataOutputStream out = new DataOutputStream(
+                    new FileOutputStream(journal, true));
+            try {
+                out.writeInt(record.length);
+                out.write(record);
+            } finally {
+                out.close();
+            }
+            mJournalRecords++;
+            mJournalSize += record.length + 4;
+            if (LOGV_ENABLED) {
+                Log.v(LOGTAG, "Appended " + record.length + " bytes to journal");
+            }
+        } catch (Throwable e) {
+            Log.i(LOGTAG, "Failed to append to journal", e);
+            // The journal may end in a partial record, start over from the
+            // merged state.
+            compact();
+        }
+    }
+
+    /**
+     * Replaces the summaries of hibernated and not yet restored tabs with
+     * their full state, so that what is written can stand on its own.
+     */
+    private void resolvePartialStates(Bundle state) {
+        for (String key : new ArrayList<String>(state.keySet())) {
+            Object value = state.get(key);
+            if (value instanceof Bundle) {
+                state.putBundle(key, resolveTabState((Bundle) value, false));
+            }
+        }
+    }
+
+    /**
+     * Folds the journal into the snapshot.
+     */
+    private void compact() {
+        if (LOGV_ENABLED) {
+            Log.v(LOGTAG, "Compacting crash recovery journal");
+        }
+        if (writeSnapshot(mBackupState)) {
+            new File(mContext.getCacheDir(), JOURNAL_FILE).delete();
+            mJournalRecords = 0;
+            mJournalSize = 0;
+        }
+    }
+
+    private synchronized void deleteState() {
+        new File(mContext.getCacheDir(), STATE_FILE).delete();
+        new File(mContext.getCacheDir(), JOURNAL_FILE).delete();
+        mBackupState = null;
+        mJournalRecords = 0;
+        mJournalSize = 0;
+        mSnapshotSize = 0;
+    }
+
+    /**
+     * Writes the full crash recovery state to a file synchronously, replacing
+     * any journaled deltas. Errors are swallowed, but logged.
      * @param state The state to write out
      */
     synchronized void writeState(Bundle state) {
         if (LOGV_ENABLED) {
             Log.v(LOGTAG, "Saving crash recovery state");
         }
-        Parcel p = Parcel.obtain();
+        // Pending deltas are older than this state
+        mBackgroundHandler.removeMessages(MSG_WRITE_DELTA);
+        resolvePartialStates(state);
+        if (writeSnapshot(state)) {
+            new File(mContext.getCacheDir(), JOURNAL_FILE).delete();
+        }
+        // Reloaded from the snapshot by the next delta
+        mBackupState = null;
+        mJournalRecords = 0;
+        mJournalSize = 0;
+    }
+
+    private boolean writeSnapshot(Bundle state) {
         try {
-            state.writeToParcel(p, 0);
-            File stateJournal = new File(mContext.getCacheDir(),
+            Bundle header = new Bundle(state);
+            ArrayList<String> tabs = new ArrayList<String>();
+            for (String key : state.keySet()) {
+                Object value = state.get(key);
+                if (value instanceof Bundle) {
+                    tabs.add(key);
+                    header.putBundle(key, summarize((Bundle) value));
+                }
+            }
+            File stateTemp = new File(mContext.getCacheDir(),
                     STATE_FILE + ".journal");
-            FileOutputStream fout = new FileOutputStream(stateJournal);
-            fout.write(p.marshall());
-            fout.close();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(stateTemp), BUFFER_SIZE));
+            try {
+                out.writeInt(SNAPSHOT_MAGIC);
+                byte[] data = marshall(header);
+                out.writeInt(data.length);
+                out.write(data);
+                out.writeInt(tabs.size());
+                for (String key : tabs) {
+                    data = marshall(state.getBundle(key));
+                    out.writeLong(Long.parseLong(key));
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+            } finally {
+                out.close();
+            }
             File stateFile = new File(mContext.getCacheDir(),
                     STATE_FILE);
-            if (!stateJournal.renameTo(stateFile)) {
+            if (!stateTemp.renameTo(stateFile)) {
                 // Failed to rename, try deleting the existing
                 // file and try again
                 stateFile.delete();
-                stateJournal.renameTo(stateFile);
+                stateTemp.renameTo(stateFile);
             }
+            mSnapshotSize = stateFile.length();
+            return true;
         } catch (Throwable e) {
             Log.i(LOGTAG, "Failed to save persistent state", e);
-        } finally {
-            p.recycle();
+            return false;
         }
     }
-}
\ No newline at end of file
+}
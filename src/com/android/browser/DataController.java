@@ -21,21 +21,33 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.provider.BrowserContract;
-import android.provider.BrowserContract.History;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.browser.provider.BrowserProvider2.Thumbnails;
+import com.android.browser.provider.BrowserProvider2.Visits;
+import com.android.browser.provider.ThumbnailStore;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
 
 public class DataController {
     private static final String LOGTAG = "DataController";
@@ -46,16 +58,45 @@ public class DataController {
     private static final int TAB_LOAD_THUMBNAIL = 201;
     private static final int TAB_SAVE_THUMBNAIL = 202;
     private static final int TAB_DELETE_THUMBNAIL = 203;
+    // Upper bound on messages handled per pass, keeps a history batch well
+    // below SQLiteContentProvider's operations per yield point limit
+    private static final int MAX_BATCH_SIZE = 100;
+    // Number of url -> bookmarked answers to remember
+    private static final int BOOKMARK_STATUS_CACHE_SIZE = 64;
+    // Tab thumbnails are stored compressed, see Tab#updateCaptureFromBlob
+    private static final Bitmap.CompressFormat THUMBNAIL_FORMAT = Bitmap.CompressFormat.WEBP;
+    private static final int THUMBNAIL_QUALITY = 80;
     private static DataController sInstance;
 
     private Context mContext;
     private DataControllerHandler mDataHandler;
     private Handler mCbHandler; // To respond on the UI thread
     private ByteBuffer mBuffer; // to capture thumbnails
+    private Bitmap mEncodeBitmap; // to compress thumbnails
+    private final ByteArrayOutputStream mEncodeStream = new ByteArrayOutputStream();
+    private final CRC32 mChecksum = new CRC32();
+    // tab id -> checksum of the pixels last written, only used on the data thread
+    private final HashMap<Long, Long> mThumbnailChecksums = new HashMap<Long, Long>();
+    private volatile long mHistoryWrites;
+    private volatile long mCoalescedHistoryWrites;
+
+    // Bookmark status, only touched on the UI thread. Callbacks waiting on
+    // the same url share a single query, and answers are kept until the
+    // bookmarks change.
+    private final LruCache<String, Boolean> mBookmarkStatusCache
+            = new LruCache<String, Boolean>(BOOKMARK_STATUS_CACHE_SIZE);
+    private final HashMap<String, PendingBookmarkQuery> mPendingBookmarkQueries
+            = new HashMap<String, PendingBookmarkQuery>();
+    private int mBookmarkGeneration;
 
     /* package */ static interface OnQueryUrlIsBookmark {
         void onQueryUrlIsBookmark(String url, boolean isBookmark);
     }
+    private static class PendingBookmarkQuery {
+        // The bookmark generation the query in flight was made at
+        int generation;
+        ArrayList<OnQueryUrlIsBookmark> callbacks = new ArrayList<OnQueryUrlIsBookmark>(2);
+    }
     private static class CallbackContainer {
         Object replyTo;
         Object[] args;
@@ -88,15 +129,38 @@ public class DataController {
                 CallbackContainer cc = (CallbackContainer) msg.obj;
                 switch (msg.what) {
                     case QUERY_URL_IS_BOOKMARK: {
-                        OnQueryUrlIsBookmark cb = (OnQueryUrlIsBookmark) cc.replyTo;
                         String url = (String) cc.args[0];
                         boolean isBookmark = (Boolean) cc.args[1];
-                        cb.onQueryUrlIsBookmark(url, isBookmark);
+                        if (msg.arg1 == mBookmarkGeneration) {
+                            mBookmarkStatusCache.put(url, isBookmark);
+                        }
+                        PendingBookmarkQuery pending = mPendingBookmarkQueries.get(url);
+                        if (pending == null || pending.generation != msg.arg1) {
+                            // Superseded by a query made after the bookmarks
+                            // changed, which answers all of the callbacks
+                            break;
+                        }
+                        mPendingBookmarkQueries.remove(url);
+                        for (OnQueryUrlIsBookmark cb : pending.callbacks) {
+                            cb.onQueryUrlIsBookmark(url, isBookmark);
+                        }
                         break;
                     }
                 }
             }
         };
+        mContext.getContentResolver().registerContentObserver(
+                BrowserContract.Bookmarks.CONTENT_URI, true,
+                new ContentObserver(mCbHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        // Answers still in flight were computed against the
+                        // old bookmarks, the generation keeps them out of
+                        // the cache and keeps new queries from joining them
+                        mBookmarkGeneration++;
+                        mBookmarkStatusCache.evictAll();
+                    }
+                });
     }
 
     public void updateVisitedHistory(String url) {
@@ -113,7 +177,39 @@ public class DataController {
             replyTo.onQueryUrlIsBookmark(url, false);
             return;
         }
-        mDataHandler.sendMessage(QUERY_URL_IS_BOOKMARK, url.trim(), replyTo);
+        url = url.trim();
+        Boolean cached = mBookmarkStatusCache.get(url);
+        if (cached != null) {
+            replyTo.onQueryUrlIsBookmark(url, cached);
+            return;
+        }
+        PendingBookmarkQuery pending = mPendingBookmarkQueries.get(url);
+        if (pending == null) {
+            pending = new PendingBookmarkQuery();
+            mPendingBookmarkQueries.put(url, pending);
+        } else if (pending.generation == mBookmarkGeneration) {
+            // A query for this url is already in flight, piggyback on it
+            if (!pending.callbacks.contains(replyTo)) {
+                pending.callbacks.add(replyTo);
+            }
+            return;
+        }
+        // No query yet, or the one in flight started before the bookmarks
+        // changed. A new one answers everyone waiting.
+        if (!pending.callbacks.contains(replyTo)) {
+            pending.callbacks.add(replyTo);
+        }
+        pending.generation = mBookmarkGeneration;
+        mDataHandler.sendMessage(QUERY_URL_IS_BOOKMARK, url, mBookmarkGeneration);
+    }
+
+    /**
+     * Returns how many history updates have been requested, and how many
+     * of those were folded into another update for the same url rather
+     * than written on their own.
+     */
+    public long[] getHistoryWriteStats() {
+        return new long[] { mHistoryWrites, mCoalescedHistoryWrites };
     }
 
     public void loadThumbnail(Tab tab) {
@@ -128,11 +224,21 @@ public class DataController {
         mDataHandler.sendMessage(TAB_SAVE_THUMBNAIL, tab);
     }
 
+    // Pending history writes for a single url, merged across a batch
+    private static class HistoryUpdate {
+        int visits;
+        long lastVisited;
+        String title;
+    }
+
     // The standard Handler and Message classes don't allow the queue manipulation
     // we want (such as peeking). So we use our own queue.
     class DataControllerHandler extends Thread {
         private BlockingQueue<DCMessage> mMessageQueue
                 = new LinkedBlockingQueue<DCMessage>();
+        private final ArrayList<DCMessage> mBatch = new ArrayList<DCMessage>();
+        private final LinkedHashMap<String, HistoryUpdate> mHistoryUpdates
+                = new LinkedHashMap<String, HistoryUpdate>();
 
         public DataControllerHandler() {
             super("DataControllerHandler");
@@ -143,10 +249,16 @@ public class DataController {
             setPriority(Thread.MIN_PRIORITY);
             while (true) {
                 try {
-                    handleMessage(mMessageQueue.take());
+                    mBatch.add(mMessageQueue.take());
                 } catch (InterruptedException ex) {
                     break;
                 }
+                mMessageQueue.drainTo(mBatch, MAX_BATCH_SIZE - 1);
+                for (DCMessage msg : mBatch) {
+                    handleMessage(msg);
+                }
+                mBatch.clear();
+                flushHistoryUpdates();
             }
         }
 
@@ -164,22 +276,22 @@ public class DataController {
         private void handleMessage(DCMessage msg) {
             switch (msg.what) {
             case HISTORY_UPDATE_VISITED:
-                doUpdateVisitedHistory((String) msg.obj);
+                queueVisitedHistory((String) msg.obj);
                 break;
             case HISTORY_UPDATE_TITLE:
                 String[] args = (String[]) msg.obj;
-                doUpdateHistoryTitle(args[0], args[1]);
+                queueHistoryTitle(args[0], args[1]);
                 break;
             case QUERY_URL_IS_BOOKMARK:
-                // TODO: Look for identical messages in the queue and remove them
-                // TODO: Also, look for partial matches and merge them (such as
-                //       multiple callbacks querying the same URL)
-                doQueryBookmarkStatus((String) msg.obj, msg.replyTo);
+                // Identical queries are merged before they get here, see
+                // queryBookmarkStatus
+                doQueryBookmarkStatus((String) msg.obj, (Integer) msg.replyTo);
                 break;
             case TAB_LOAD_THUMBNAIL:
                 doLoadThumbnail((Tab) msg.obj);
                 break;
             case TAB_DELETE_THUMBNAIL:
+                mThumbnailChecksums.remove((Long) msg.obj);
                 ContentResolver cr = mContext.getContentResolver();
                 try {
                     cr.delete(ContentUris.withAppendedId(
@@ -193,19 +305,48 @@ public class DataController {
             }
         }
 
+        /**
+         * Copies the tab's capture under the tab lock, then compresses it
+         * outside of it. Returns null if there is no capture or if its
+         * pixels are the same as the last ones written for this tab.
+         */
         private byte[] getCaptureBlob(Tab tab) {
+            int width, height;
+            Bitmap.Config config;
+            int byteCount;
             synchronized (tab) {
-                Bitmap capture = tab.getScreenshot();
+                Bitmap capture = tab.getCapture();
                 if (capture == null) {
                     return null;
                 }
-                if (mBuffer == null || mBuffer.limit() < capture.getByteCount()) {
-                    mBuffer = ByteBuffer.allocate(capture.getByteCount());
+                byteCount = capture.getByteCount();
+                if (mBuffer == null || mBuffer.limit() < byteCount) {
+                    mBuffer = ByteBuffer.allocate(byteCount);
                 }
                 capture.copyPixelsToBuffer(mBuffer);
                 mBuffer.rewind();
-                return mBuffer.array();
+                width = capture.getWidth();
+                height = capture.getHeight();
+                config = capture.getConfig();
+            }
+            mChecksum.reset();
+            mChecksum.update(mBuffer.array(), 0, byteCount);
+            Long previous = mThumbnailChecksums.get(tab.getId());
+            if (previous != null && previous == mChecksum.getValue()) {
+                return null;
+            }
+            if (mEncodeBitmap == null || mEncodeBitmap.getWidth() != width
+                    || mEncodeBitmap.getHeight() != height
+                    || mEncodeBitmap.getConfig() != config) {
+                mEncodeBitmap = Bitmap.createBitmap(width, height, config);
+            }
+            mEncodeBitmap.copyPixelsFromBuffer(mBuffer);
+            mBuffer.rewind();
+            mEncodeStream.reset();
+            if (!mEncodeBitmap.compress(THUMBNAIL_FORMAT, THUMBNAIL_QUALITY, mEncodeStream)) {
+                return null;
             }
+            return mEncodeStream.toByteArray();
         }
 
         private void doSaveThumbnail(Tab tab) {
@@ -217,58 +358,111 @@ public class DataController {
             ContentValues values = new ContentValues();
             values.put(Thumbnails._ID, tab.getId());
             values.put(Thumbnails.THUMBNAIL, blob);
-            cr.insert(Thumbnails.CONTENT_URI, values);
+            if (cr.insert(Thumbnails.CONTENT_URI, values) != null) {
+                mThumbnailChecksums.put(tab.getId(), mChecksum.getValue());
+            } else {
+                // Not written, the next capture has to try again
+                mThumbnailChecksums.remove(tab.getId());
+            }
         }
 
         private void doLoadThumbnail(Tab tab) {
             ContentResolver cr = mContext.getContentResolver();
-            Cursor c = null;
+            Uri uri = ContentUris.withAppendedId(Thumbnails.CONTENT_URI, tab.getId());
+            byte[] data;
             try {
-                Uri uri = ContentUris.withAppendedId(Thumbnails.CONTENT_URI, tab.getId());
-                c = cr.query(uri, new String[] {Thumbnails._ID,
-                        Thumbnails.THUMBNAIL}, null, null, null);
-                if (c.moveToFirst()) {
-                    byte[] data = c.getBlob(1);
-                    if (data != null && data.length > 0) {
-                        tab.updateCaptureFromBlob(data);
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
+                ParcelFileDescriptor pfd = cr.openFileDescriptor(uri, "r");
+                data = ThumbnailStore.readFully(
+                        new ParcelFileDescriptor.AutoCloseInputStream(pfd));
+            } catch (FileNotFoundException e) {
+                // Never captured
+                return;
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Failed to load thumbnail for tab " + tab.getId(), e);
+                return;
+            }
+            if (data.length > 0) {
+                tab.updateCaptureFromBlob(data);
             }
         }
 
-        private void doUpdateVisitedHistory(String url) {
-            ContentResolver cr = mContext.getContentResolver();
-            Cursor c = null;
+        private HistoryUpdate getHistoryUpdate(String url) {
+            mHistoryWrites++;
+            HistoryUpdate update = mHistoryUpdates.get(url);
+            if (update == null) {
+                update = new HistoryUpdate();
+                mHistoryUpdates.put(url, update);
+            } else {
+                mCoalescedHistoryWrites++;
+            }
+            return update;
+        }
+
+        private void queueVisitedHistory(String url) {
+            HistoryUpdate update = getHistoryUpdate(url);
+            update.visits++;
+            update.lastVisited = System.currentTimeMillis();
+        }
+
+        private void queueHistoryTitle(String url, String title) {
+            getHistoryUpdate(url).title = title;
+        }
+
+        /**
+         * Writes all of the history updates collected from the current batch
+         * of messages with a single provider call. The provider increments
+         * the visit counts in place within one transaction, so observers see
+         * one change notification per batch instead of one per navigation.
+         */
+        private void flushHistoryUpdates() {
+            if (mHistoryUpdates.isEmpty()) {
+                return;
+            }
+            int size = mHistoryUpdates.size();
+            String[] urls = mHistoryUpdates.keySet().toArray(new String[size]);
+            int[] visits = new int[size];
+            long[] dates = new long[size];
+            String[] titles = new String[size];
+            for (int i = 0; i < size; i++) {
+                HistoryUpdate update = mHistoryUpdates.get(urls[i]);
+                visits[i] = update.visits;
+                dates[i] = update.lastVisited;
+                // A title for a url not in history is dropped, as before
+                titles[i] = update.title;
+            }
+            Bundle extras = new Bundle();
+            extras.putStringArray(Visits.EXTRA_URLS, urls);
+            extras.putIntArray(Visits.EXTRA_VISITS, visits);
+            extras.putLongArray(Visits.EXTRA_DATES, dates);
+            extras.putStringArray(Visits.EXTRA_TITLES, titles);
             try {
-                c = cr.query(History.CONTENT_URI, new String[] { History._ID, History.VISITS },
-                        History.URL + "=?", new String[] { url }, null);
-                if (c.moveToFirst()) {
-                    ContentValues values = new ContentValues();
-                    values.put(History.VISITS, c.getInt(1) + 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    cr.update(ContentUris.withAppendedId(History.CONTENT_URI, c.getLong(0)),
-                            values, null, null);
-                } else {
-                    android.provider.Browser.truncateHistory(cr);
-                    ContentValues values = new ContentValues();
-                    values.put(History.URL, url);
-                    values.put(History.VISITS, 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    values.put(History.TITLE, url);
-                    values.put(History.DATE_CREATED, 0);
-                    values.put(History.USER_ENTERED, 0);
-                    cr.insert(History.CONTENT_URI, values);
+                mContext.getContentResolver().call(BrowserContract.AUTHORITY_URI,
+                        Visits.METHOD_RECORD, null, extras);
+                SuggestionIndex index = SuggestionIndex.getInstance(mContext);
+                VisitedLinkStore visited = VisitedLinkStore.getInstance(mContext);
+                for (int i = 0; i < size; i++) {
+                    if (visits[i] > 0) {
+                        index.recordVisits(urls[i], visits[i], dates[i]);
+                        visited.addUrl(urls[i]);
+                    }
+                    if (titles[i] != null) {
+                        index.updateTitle(urls[i], titles[i]);
+                    }
                 }
+            } catch (IllegalArgumentException e) {
+                Log.e(LOGTAG, "Failed to update history", e);
+            } catch (SQLiteException e) {
+                Log.e(LOGTAG, "Failed to update history", e);
             } finally {
-                if (c != null) c.close();
+                mHistoryUpdates.clear();
+            }
+            if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+                Log.d(LOGTAG, "history writes: " + mHistoryWrites
+                        + ", coalesced: " + mCoalescedHistoryWrites);
             }
         }
 
-        private void doQueryBookmarkStatus(String url, Object replyTo) {
+        private void doQueryBookmarkStatus(String url, int generation) {
             // Check to see if the site is bookmarked
             Cursor cursor = null;
             boolean isBookmark = false;
@@ -286,17 +480,8 @@ public class DataController {
                 if (cursor != null) cursor.close();
             }
             CallbackContainer cc = new CallbackContainer();
-            cc.replyTo = replyTo;
             cc.args = new Object[] { url, isBookmark };
-            mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
-        }
-
-        private void doUpdateHistoryTitle(String url, String title) {
-            ContentResolver cr = mContext.getContentResolver();
-            ContentValues values = new ContentValues();
-            values.put(History.TITLE, title);
-            cr.update(History.CONTENT_URI, values, History.URL + "=?",
-                    new String[] { url });
+            mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, generation, 0, cc).sendToTarget();
         }
     }
 }
@@ -19,6 +19,8 @@ package com.android.browser;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DataSetObserver;
+import android.os.Handler;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -27,80 +29,124 @@ import android.widget.BaseExpandableListAdapter;
 import android.widget.ExpandableListView;
 import android.widget.TextView;
 
+import java.util.HashSet;
+
 /**
  * ExpandableListAdapter which separates data into categories based on date.
- * Used for History and Downloads.
+ * Used for History.
+ *
+ * Only the number of items in each category is loaded up front, see
+ * {@link #getBinExpression} and {@link #changeBinCounts}. The items
+ * themselves are loaded a page at a time, off the UI thread, as the groups
+ * they are in are shown. Until its page arrives an item has no data.
  */
-public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
+public abstract class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
+
+    static final int PAGE_SIZE = 50;
+    // Pages kept around, least recently used are dropped
+    private static final int MAX_PAGES = 16;
+    // The next page is loaded once an item this close to its end is shown
+    private static final int PREFETCH_DISTANCE = 10;
+
     // Array for each of our bins.  Each entry represents how many items are
     // in that bin.
-    private int mItemMap[];
+    private int mItemMap[] = new int[DateSorter.DAY_COUNT];
     // This is our GroupCount.  We will have at most DateSorter.DAY_COUNT
     // bins, less if the user has no items in one or more bins.
     private int mNumberOfBins;
+    // The page the last successful move landed in
     private Cursor mCursor;
     private DateSorter mDateSorter;
-    private int mDateIndex;
     private int mIdIndex;
     private Context mContext;
+    private final Handler mHandler = new Handler();
+    // Bumped whenever the counts change, pages loaded before are dropped
+    private int mGeneration;
+    private final HashSet<Long> mLoading = new HashSet<Long>();
+    private final LruCache<Long, Cursor> mPages = new LruCache<Long, Cursor>(MAX_PAGES) {
+        @Override
+        protected void entryRemoved(boolean evicted, Long key, Cursor oldValue,
+                Cursor newValue) {
+            if (oldValue == mCursor) {
+                mCursor = null;
+            }
+            oldValue.close();
+        }
+    };
 
     boolean mDataValid;
 
     DataSetObserver mDataSetObserver = new DataSetObserver() {
         @Override
         public void onChanged() {
-            mDataValid = true;
             notifyDataSetChanged();
         }
 
         @Override
         public void onInvalidated() {
-            mDataValid = false;
             notifyDataSetInvalidated();
         }
     };
-    
-    public DateSortedExpandableListAdapter(Context context, int dateIndex) {
+
+    public DateSortedExpandableListAdapter(Context context) {
         mContext = context;
         mDateSorter = new DateSorter(context);
-        mDateIndex = dateIndex;
         mDataValid = false;
         mIdIndex = -1;
     }
 
     /**
-     * Set up the bins for determining which items belong to which groups.
+     * Returns up to limit items of the bin, skipping the first offset items.
+     * The items must be newer than after and no newer than before, sorted
+     * newest first, and have an "_id" column. Called on a background thread.
      */
-    private void buildMap() {
-        // The cursor is sorted by date
-        // The ItemMap will store the number of items in each bin.
-        int array[] = new int[DateSorter.DAY_COUNT];
-        // Zero out the array.
-        for (int j = 0; j < DateSorter.DAY_COUNT; j++) {
-            array[j] = 0;
+    abstract Cursor queryPage(long after, long before, int offset, int limit);
+
+    /**
+     * Returns an SQL expression of the bin index for the date in column, to
+     * group the counts passed to {@link #changeBinCounts} by.
+     */
+    String getBinExpression(String column) {
+        StringBuilder expression = new StringBuilder("CASE");
+        for (int i = 0; i < DateSorter.DAY_COUNT - 1; i++) {
+            expression.append(" WHEN ").append(column).append(" > ")
+                    .append(mDateSorter.getBoundary(i)).append(" THEN ").append(i);
         }
+        return expression.append(" ELSE ").append(DateSorter.DAY_COUNT - 1)
+                .append(" END").toString();
+    }
+
+    /**
+     * Takes a cursor of bin indices from {@link #getBinExpression} and item
+     * counts, in the given columns. Cached pages are dropped. Passing null
+     * invalidates the data.
+     */
+    void changeBinCounts(Cursor counts, int binIndex, int countIndex) {
+        mGeneration++;
+        mLoading.clear();
+        mPages.evictAll();
+        mCursor = null;
+        if (counts == null) {
+            mDataValid = false;
+            notifyDataSetInvalidated();
+            return;
+        }
+        int array[] = new int[DateSorter.DAY_COUNT];
         mNumberOfBins = 0;
-        int dateIndex = -1;
-        if (mCursor.moveToFirst() && mCursor.getCount() > 0) {
-            while (!mCursor.isAfterLast()) {
-                long date = getLong(mDateIndex);
-                int index = mDateSorter.getIndex(date);
-                if (index > dateIndex) {
-                    mNumberOfBins++;
-                    if (index == DateSorter.DAY_COUNT - 1) {
-                        // We are already in the last bin, so it will
-                        // include all the remaining items
-                        array[index] = mCursor.getCount()
-                                - mCursor.getPosition();
-                        break;
+        if (counts.moveToFirst()) {
+            do {
+                int bin = counts.getInt(binIndex);
+                if (bin >= 0 && bin < DateSorter.DAY_COUNT && array[bin] == 0) {
+                    array[bin] = counts.getInt(countIndex);
+                    if (array[bin] > 0) {
+                        mNumberOfBins++;
                     }
-                    dateIndex = index;
                 }
-                array[dateIndex]++;
-                mCursor.moveToNext();
-            }
+            } while (counts.moveToNext());
         }
         mItemMap = array;
+        mDataValid = true;
+        notifyDataSetChanged();
     }
 
     /**
@@ -112,7 +158,7 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
      * @return corresponding byte array from the Cursor.
      */
     /* package */ byte[] getBlob(int cursorIndex) {
-        if (!mDataValid) return null; 
+        if (!mDataValid || mCursor == null) return null;
         return mCursor.getBlob(cursorIndex);
     }
 
@@ -120,6 +166,14 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
         return mContext;
     }
 
+    /**
+     * Returns the page the last successful
+     * {@link #moveCursorToChildPosition} moved to.
+     */
+    /* package */ Cursor getCursor() {
+        return mCursor;
+    }
+
     /**
      * Get the integer at cursorIndex from the Cursor.  Assumes the Cursor has
      * already been moved to the correct position.  Along with
@@ -129,7 +183,7 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
      * @return corresponding integer from the Cursor.
      */
     /* package */ int getInt(int cursorIndex) {
-        if (!mDataValid) return 0; 
+        if (!mDataValid || mCursor == null) return 0;
         return mCursor.getInt(cursorIndex);
     }
 
@@ -138,7 +192,7 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
      * already been moved to the correct position.
      */
     /* package */ long getLong(int cursorIndex) {
-        if (!mDataValid) return 0; 
+        if (!mDataValid || mCursor == null) return 0;
         return mCursor.getLong(cursorIndex);
     }
 
@@ -151,39 +205,10 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
      * @return corresponding String from the Cursor.
      */
     /* package */ String getString(int cursorIndex) {
-        if (!mDataValid) return null; 
+        if (!mDataValid || mCursor == null) return null;
         return mCursor.getString(cursorIndex);
     }
 
-    /**
-     * Determine which group an item belongs to.
-     * @param childId ID of the child view in question.
-     * @return int Group position of the containing group.
-    /* package */ int groupFromChildId(long childId) {
-        if (!mDataValid) return -1; 
-        int group = -1;
-        for (mCursor.moveToFirst(); !mCursor.isAfterLast();
-                mCursor.moveToNext()) {
-            if (getLong(mIdIndex) == childId) {
-                int bin = mDateSorter.getIndex(getLong(mDateIndex));
-                // bin is the same as the group if the number of bins is the
-                // same as DateSorter
-                if (DateSorter.DAY_COUNT == mNumberOfBins) {
-                    return bin;
-                }
-                // There are some empty bins.  Find the corresponding group.
-                group = 0;
-                for (int i = 0; i < bin; i++) {
-                    if (mItemMap[i] != 0) {
-                        group++;
-                    }
-                }
-                break;
-            }
-        }
-        return group;
-    }
-
     /**
      * Translates from a group position in the ExpandableList to a bin.  This is
      * necessary because some groups have no history items, so we do not include
@@ -192,7 +217,7 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
      * @return The corresponding bin that holds that group.
      */
     private int groupPositionToBin(int groupPosition) {
-        if (!mDataValid) return -1; 
+        if (!mDataValid) return -1;
         if (groupPosition < 0 || groupPosition >= DateSorter.DAY_COUNT) {
             throw new AssertionError("group position out of range");
         }
@@ -233,53 +258,85 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
     }
 
     /**
-     * Move the cursor the the position indicated.
+     * Move the cursor the the position indicated, see {@link #getCursor}.
      * @param groupPosition Index of the group containing the desired item.
      * @param childPosition Index of the item within the specified group.
-     * @return boolean False if the cursor is closed, so the Cursor was not
-     *      moved.  True on success.
+     * @return boolean False if the item's page isn't loaded yet, it is
+     *      requested and the adapter changes once it arrives.  True on
+     *      success.
      */
     /* package */ boolean moveCursorToChildPosition(int groupPosition,
             int childPosition) {
-        if (!mDataValid || mCursor.isClosed()) {
+        if (!mDataValid) {
             return false;
         }
-        groupPosition = groupPositionToBin(groupPosition);
-        int index = childPosition;
-        for (int i = 0; i < groupPosition; i++) {
-            index += mItemMap[i];
+        int bin = groupPositionToBin(groupPosition);
+        if (childPosition < 0 || childPosition >= mItemMap[bin]) {
+            return false;
         }
-        return mCursor.moveToPosition(index);
-    }
-
-    public void changeCursor(Cursor cursor) {
-        if (cursor == mCursor) {
-            return;
+        int page = childPosition / PAGE_SIZE;
+        int inPage = childPosition % PAGE_SIZE;
+        if (inPage >= PAGE_SIZE - PREFETCH_DISTANCE
+                && (page + 1) * PAGE_SIZE < mItemMap[bin]) {
+            requestPage(bin, page + 1);
+        }
+        Cursor cursor = mPages.get(pageKey(bin, page));
+        if (cursor == null || cursor.isClosed()) {
+            requestPage(bin, page);
+            return false;
         }
-        if (mCursor != null) {
-            mCursor.unregisterDataSetObserver(mDataSetObserver);
-            mCursor.close();
+        if (!cursor.moveToPosition(inPage)) {
+            return false;
         }
         mCursor = cursor;
-        if (cursor != null) {
-            cursor.registerDataSetObserver(mDataSetObserver);
-            mIdIndex = cursor.getColumnIndexOrThrow("_id");
-            mDataValid = true;
-            buildMap();
-            // notify the observers about the new cursor
-            notifyDataSetChanged();
-        } else {
-            mIdIndex = -1;
-            mDataValid = false;
-            // notify the observers about the lack of a data set
-            notifyDataSetInvalidated();
+        return true;
+    }
+
+    private static long pageKey(int bin, int page) {
+        return ((long) bin << 32) | page;
+    }
+
+    private void requestPage(final int bin, final int page) {
+        final Long key = pageKey(bin, page);
+        if (mPages.get(key) != null || !mLoading.add(key)) {
+            return;
         }
+        final int generation = mGeneration;
+        final long after = mDateSorter.getBoundary(bin);
+        final long before = bin == 0 ? Long.MAX_VALUE : mDateSorter.getBoundary(bin - 1);
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Cursor cursor = queryPage(after, before, page * PAGE_SIZE, PAGE_SIZE);
+                if (cursor != null) {
+                    // Fill the window here rather than on the UI thread
+                    cursor.getCount();
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            if (cursor != null) cursor.close();
+                            return;
+                        }
+                        mLoading.remove(key);
+                        if (cursor != null) {
+                            if (mIdIndex < 0) {
+                                mIdIndex = cursor.getColumnIndexOrThrow("_id");
+                            }
+                            mPages.put(key, cursor);
+                            notifyDataSetChanged();
+                        }
+                    }
+                });
+            }
+        });
     }
 
     @Override
     public View getGroupView(int groupPosition, boolean isExpanded,
             View convertView, ViewGroup parent) {
-        if (!mDataValid) throw new IllegalStateException("Data is not valid"); 
+        if (!mDataValid) throw new IllegalStateException("Data is not valid");
         TextView item;
         if (null == convertView || !(convertView instanceof TextView)) {
             LayoutInflater factory = LayoutInflater.from(mContext);
@@ -295,7 +352,7 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
     @Override
     public View getChildView(int groupPosition, int childPosition,
             boolean isLastChild, View convertView, ViewGroup parent) {
-        if (!mDataValid) throw new IllegalStateException("Data is not valid"); 
+        if (!mDataValid) throw new IllegalStateException("Data is not valid");
         return null;
     }
 
@@ -333,22 +390,25 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
 
     @Override
     public long getGroupId(int groupPosition) {
-        if (!mDataValid) return 0; 
+        if (!mDataValid) return 0;
         return groupPosition;
     }
 
     @Override
     public long getChildId(int groupPosition, int childPosition) {
-        if (!mDataValid) return 0; 
+        if (!mDataValid) return 0;
         if (moveCursorToChildPosition(groupPosition, childPosition)) {
             return getLong(mIdIndex);
         }
-        return 0;
+        // Not loaded yet, distinct from the ids of loaded items
+        return -1 - childPosition;
     }
 
     @Override
     public boolean hasStableIds() {
-        return true;
+        // Rows whose page isn't loaded yet report a placeholder id, see
+        // getChildId, which changes once the page arrives
+        return false;
     }
 
     @Override
@@ -361,18 +421,18 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
 
     @Override
     public long getCombinedChildId(long groupId, long childId) {
-        if (!mDataValid) return 0; 
+        if (!mDataValid) return 0;
         return childId;
     }
 
     @Override
     public long getCombinedGroupId(long groupId) {
-        if (!mDataValid) return 0; 
+        if (!mDataValid) return 0;
         return groupId;
     }
 
     @Override
     public boolean isEmpty() {
-        return !mDataValid || mCursor == null || mCursor.isClosed() || mCursor.getCount() == 0;
+        return !mDataValid || mNumberOfBins == 0;
     }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.browser;
+
+import android.content.ComponentCallbacks2;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.util.LruCache;
+
+import com.android.browser.provider.BrowserProvider2.ImageHashes;
+
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
+/**
+ * Decoded favicons, thumbnails and touch icons shared by the bookmarks and
+ * history pages. Images are keyed by the hash the provider stores them
+ * under, see {@link ImageHashes}, and the size they were decoded for, so
+ * every page of a site shares one favicon bitmap and a hit never copies the
+ * blob out of the cursor. Images are downsampled to the smallest power of
+ * two fraction that still covers the size asked for.
+ *
+ * Bitmaps from {@link #getBitmap} are shared and must not be recycled or
+ * drawn into. Those from {@link #acquireBitmap} are the same, but once
+ * every holder has called {@link #releaseBitmap} and the cache dropped
+ * them they are decoded into again instead of allocating a new bitmap.
+ */
+public class ImageCache {
+
+    private static final int MAX_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_REUSABLE = 8;
+
+    private static ImageCache sInstance;
+
+    // Who may be drawing a decoded bitmap
+    private static class Holders {
+        int refs;
+        // Handed out through getBitmap, the holders are unknown
+        boolean shared;
+        boolean cached;
+    }
+
+    private static ThreadLocal<Options> sOptions = new ThreadLocal<Options>() {
+        @Override
+        protected Options initialValue() {
+            return new Options();
+        }
+    };
+
+    private final LruCache<String, Bitmap> mCache;
+    // Weak so that bitmaps whose holders never release them are still
+    // collected, guarded by this
+    private final WeakHashMap<Bitmap, Holders> mHolders = new WeakHashMap<Bitmap, Holders>();
+    // Bitmaps nobody draws anymore, guarded by this
+    private final ArrayList<Bitmap> mReusable = new ArrayList<Bitmap>();
+
+    public static synchronized ImageCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImageCache();
+        }
+        return sInstance;
+    }
+
+    private ImageCache() {
+        int maxBytes = (int) Math.min(MAX_BYTES, Runtime.getRuntime().maxMemory() / 16);
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                    Bitmap newValue) {
+                synchronized (ImageCache.this) {
+                    Holders holders = mHolders.get(oldValue);
+                    if (holders != null) {
+                        holders.cached = false;
+                        makeReusable(oldValue, holders);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the image in the cursor's dataIndex column, decoding it only
+     * if no image with the hash in hashIndex was decoded before. Returns
+     * null if the row has no image.
+     */
+    public Bitmap getBitmap(Cursor c, int dataIndex, int hashIndex) {
+        return getBitmap(c, dataIndex, hashIndex, 0, 0);
+    }
+
+    /**
+     * Like {@link #getBitmap(Cursor, int, int)}, downsampled for a view of
+     * the given size in pixels. A size of 0 decodes the image as is.
+     */
+    public Bitmap getBitmap(Cursor c, int dataIndex, int hashIndex, int width, int height) {
+        return getBitmap(c, dataIndex, hashIndex, width, height, false);
+    }
+
+    /**
+     * Like {@link #getBitmap(Cursor, int, int, int, int)}, for holders that
+     * call {@link #releaseBitmap} once they stop drawing the bitmap, which
+     * lets it be reused.
+     */
+    public Bitmap acquireBitmap(Cursor c, int dataIndex, int hashIndex, int width,
+            int height) {
+        return getBitmap(c, dataIndex, hashIndex, width, height, true);
+    }
+
+    public synchronized void releaseBitmap(Bitmap bitmap) {
+        Holders holders = bitmap != null ? mHolders.get(bitmap) : null;
+        if (holders != null && holders.refs > 0) {
+            holders.refs--;
+            makeReusable(bitmap, holders);
+        }
+    }
+
+    private Bitmap getBitmap(Cursor c, int dataIndex, int hashIndex, int width, int height,
+            boolean acquire) {
+        String hash = c.getString(hashIndex);
+        if (hash == null) {
+            return null;
+        }
+        String key = width > 0 || height > 0 ? hash + '@' + width + 'x' + height : hash;
+        synchronized (this) {
+            // Looked up under the lock so an eviction cannot make the bitmap
+            // reusable before it is marked as handed out
+            Bitmap bitmap = mCache.get(key);
+            if (bitmap != null) {
+                return handOut(bitmap, acquire);
+            }
+        }
+        byte[] data = c.getBlob(dataIndex);
+        if (data == null) {
+            return null;
+        }
+        Bitmap bitmap = decode(data, width, height);
+        if (bitmap == null) {
+            return null;
+        }
+        synchronized (this) {
+            Holders holders = new Holders();
+            mHolders.put(bitmap, holders);
+            Bitmap existing = mCache.get(key);
+            if (existing != null) {
+                // Decoded by another thread meanwhile
+                makeReusable(bitmap, holders);
+                return handOut(existing, acquire);
+            }
+            holders.cached = true;
+            handOut(bitmap, acquire);
+            mCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    private Bitmap handOut(Bitmap bitmap, boolean acquire) {
+        Holders holders = mHolders.get(bitmap);
+        if (holders != null) {
+            if (acquire) {
+                holders.refs++;
+            } else {
+                holders.shared = true;
+            }
+        }
+        return bitmap;
+    }
+
+    private Bitmap decode(byte[] data, int width, int height) {
+        Options opts = sOptions.get();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while ((width > 0 || height > 0)
+                && opts.outWidth / (sampleSize * 2) >= width
+                && opts.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        int bytes = ((opts.outWidth + sampleSize - 1) / sampleSize)
+                * ((opts.outHeight + sampleSize - 1) / sampleSize) * 4;
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize;
+        opts.inScaled = false;
+        opts.inMutable = true;
+        opts.inBitmap = takeReusable(bytes);
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        } catch (IllegalArgumentException ex) {
+            // Failed to re-use bitmap, create a new one
+            opts.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        } finally {
+            opts.inBitmap = null;
+        }
+    }
+
+    /**
+     * Keeps a bitmap that nobody can be drawing anymore for decoding into.
+     */
+    private void makeReusable(Bitmap bitmap, Holders holders) {
+        if (holders.cached || holders.shared || holders.refs > 0 || !bitmap.isMutable()) {
+            return;
+        }
+        mHolders.remove(bitmap);
+        if (mReusable.size() >= MAX_REUSABLE) {
+            mReusable.remove(0);
+        }
+        mReusable.add(bitmap);
+    }
+
+    private synchronized Bitmap takeReusable(int bytes) {
+        Bitmap best = null;
+        for (int i = 0; i < mReusable.size(); i++) {
+            Bitmap bitmap = mReusable.get(i);
+            int size = bitmap.getAllocationByteCount();
+            if (size >= bytes && (best == null || size < best.getAllocationByteCount())) {
+                best = bitmap;
+            }
+        }
+        if (best != null) {
+            mReusable.remove(best);
+        }
+        return best;
+    }
+
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mCache.evictAll();
+            synchronized (this) {
+                mReusable.clear();
+            }
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        }
+    }
+}
@@ -47,6 +47,8 @@ public interface PreferenceKeys {
     static final String PREF_SEARCH_ENGINE = "search_engine";
     static final String PREF_WEBSITE_SETTINGS = "website_settings";
     static final String PREF_ALLOW_APP_TABS = "allow_apptabs";
+    static final String PREF_EAGER_TAB_RESTORE = "eager_tab_restore";
+    static final String PREF_WARM_UP_TABS = "warm_up_tabs";
 
     // ----------------------
     // Keys for debug_preferences.xml
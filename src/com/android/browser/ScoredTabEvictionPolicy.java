@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.browser;
+
+import android.content.ComponentCallbacks2;
+import android.webkit.WebBackForwardList;
+import android.webkit.WebView;
+
+/**
+ * Scores a tab by its estimated footprint, scaled up the longer it has been
+ * in the background. Tabs that are busy or tied to the current tab are
+ * scaled down, since reloading them is more disruptive.
+ */
+public class ScoredTabEvictionPolicy implements TabEvictionPolicy {
+
+    // Rough cost of a WebView with a page loaded, and of every back/forward
+    // entry it holds on to, in KB
+    private static final int WEBVIEW_KB = 8 * 1024;
+    private static final int HISTORY_ENTRY_KB = 256;
+
+    private static final long MINUTE = 60 * 1000;
+
+    @Override
+    public float score(Tab tab, Tab current, long now) {
+        if (tab == current) {
+            return -1;
+        }
+        float score = estimateFootprint(tab);
+        // Idle time counts for more in the first few minutes
+        long idle = Math.max(0, now - tab.getLastShownTime());
+        score *= 1 + (float) Math.log1p(idle / (float) MINUTE);
+        if (tab.inPageLoad() || tab.getSubWebView() != null) {
+            // Still loading, or has a popup open
+            score /= 4;
+        }
+        if (current != null && (tab == current.getParent()
+                || tab.getParent() == current)) {
+            // Back navigates to the parent, children were just opened
+            score /= 2;
+        }
+        return score;
+    }
+
+    /**
+     * Estimates the memory held by the tab's WebViews in KB.
+     */
+    static int estimateFootprint(Tab tab) {
+        int kb = estimateFootprint(tab.getWebView());
+        kb += estimateFootprint(tab.getSubWebView());
+        return kb;
+    }
+
+    private static int estimateFootprint(WebView view) {
+        if (view == null) {
+            return 0;
+        }
+        WebBackForwardList list = view.copyBackForwardList();
+        return WEBVIEW_KB + list.getSize() * HISTORY_ENTRY_KB;
+    }
+
+    @Override
+    public int getTabsToKeep(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 1;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Nothing to do with memory, the UI just went away
+            return Integer.MAX_VALUE;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 4;
+        }
+        return Integer.MAX_VALUE;
+    }
+}
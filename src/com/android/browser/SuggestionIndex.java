@@ -0,0 +1,806 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.provider.BaseColumns;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.History;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * In-process index of history and bookmarks used to answer omnibox
+ * suggestions without going through the provider. Each url is keyed by its
+ * stripped form ("example.com/path") and by the words of its host, path and
+ * title, and results are ranked by frecency: the visit count weighted by how
+ * recently the url was visited, with a bonus for bookmarks.
+ *
+ * Typed text with spaces is matched as a phrase, like the provider's full
+ * text index does. Prefixes of one or two characters are answered from a
+ * precomputed list of their best entries rather than by walking every key
+ * they start, which is most of the index.
+ *
+ * The index is built once in the background and then kept current from
+ * {@link DataController} writes and from provider change notifications.
+ */
+public class SuggestionIndex {
+
+    private static final String LOGTAG = "SuggestionIndex";
+
+    // Delay before catching up with provider notifications, so bursts
+    // of writes are folded into a single refresh
+    private static final long REFRESH_DELAY = 1000;
+
+    // Bookmarks score as if they had been visited this many more times
+    private static final int BOOKMARK_BONUS_VISITS = 10;
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    // Prefixes up to this length are answered from mTop
+    private static final int SHORT_PREFIX = 2;
+    // Entries kept per short prefix, more than the omnibox ever shows
+    private static final int TOP_SIZE = 16;
+    // Past this many candidates the provider answers instead
+    private static final int MAX_CANDIDATES = 1000;
+
+    private static final String[] HISTORY_PROJECTION = new String[] {
+            History.URL, // 0
+            History.TITLE, // 1
+            History.VISITS, // 2
+            History.DATE_LAST_VISITED, // 3
+    };
+
+    private static final String[] BOOKMARKS_PROJECTION = new String[] {
+            Bookmarks.URL, // 0
+            Bookmarks.TITLE, // 1
+    };
+
+    private static final String[] COUNT_PROJECTION = new String[] {
+            "COUNT(*) AS " + BaseColumns._COUNT,
+    };
+
+    private static final String[] STRIPPED_PREFIXES = new String[] {
+            "http://", "https://", "file://",
+    };
+
+    private static SuggestionIndex sInstance;
+
+    /**
+     * A single ranked suggestion, safe to hand to the UI.
+     */
+    public static class Suggestion {
+        public final String url;
+        public final String title;
+        public final boolean isBookmark;
+
+        Suggestion(String url, String title, boolean isBookmark) {
+            this.url = url;
+            this.title = title;
+            this.isBookmark = isBookmark;
+        }
+    }
+
+    private static class Entry {
+        final String url;
+        String title;
+        String bookmarkTitle;
+        int visits;
+        long lastVisited;
+        boolean inHistory;
+        boolean bookmark;
+        String[] keys;
+        // Scratch value, only valid during a query
+        float score;
+
+        Entry(String url) {
+            this.url = url;
+        }
+
+        String displayTitle() {
+            return bookmark && !TextUtils.isEmpty(bookmarkTitle) ? bookmarkTitle : title;
+        }
+    }
+
+    private static final Comparator<Entry> SCORE_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return Float.compare(lhs.score, rhs.score);
+        }
+    };
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+
+    // All of the following are guarded by mLock
+    private HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private TreeMap<String, ArrayList<Entry>> mKeys = new TreeMap<String, ArrayList<Entry>>();
+    private HashMap<String, ArrayList<Entry>> mTop = new HashMap<String, ArrayList<Entry>>();
+    private HashSet<String> mStaleTop = new HashSet<String>();
+    private long mTopBuilt;
+    private boolean mTopRebuildPending;
+    private int mHistoryCount;
+    private long mHighWater;
+
+    private volatile boolean mLoaded;
+
+    private final Runnable mLoad = new Runnable() {
+        @Override
+        public void run() {
+            load();
+        }
+    };
+
+    private final Runnable mRefreshHistory = new Runnable() {
+        @Override
+        public void run() {
+            refreshHistory();
+        }
+    };
+
+    private final Runnable mRefreshBookmarks = new Runnable() {
+        @Override
+        public void run() {
+            refreshBookmarks();
+        }
+    };
+
+    private final Runnable mRebuildTop = new Runnable() {
+        @Override
+        public void run() {
+            rebuildTop();
+        }
+    };
+
+    /* package */ static synchronized SuggestionIndex getInstance(Context c) {
+        if (sInstance == null) {
+            sInstance = new SuggestionIndex(c);
+        }
+        return sInstance;
+    }
+
+    private SuggestionIndex(Context c) {
+        mContext = c.getApplicationContext();
+        mHandler = new Handler(BackgroundHandler.getLooper());
+        ContentResolver cr = mContext.getContentResolver();
+        cr.registerContentObserver(History.CONTENT_URI, true,
+                new RefreshObserver(mRefreshHistory));
+        cr.registerContentObserver(Bookmarks.CONTENT_URI, true,
+                new RefreshObserver(mRefreshBookmarks));
+        mHandler.post(mLoad);
+    }
+
+    private class RefreshObserver extends ContentObserver {
+        private final Runnable mRefresh;
+
+        RefreshObserver(Runnable refresh) {
+            super(mHandler);
+            mRefresh = refresh;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            if (mLoaded) {
+                mHandler.removeCallbacks(mRefresh);
+                mHandler.postDelayed(mRefresh, REFRESH_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Returns true once the initial build has completed. Until then callers
+     * should fall back to querying the provider.
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Returns up to limit suggestions for the typed text, best first, or
+     * null if the text matches too much of the index to answer cheaply.
+     * Callers should then query the provider.
+     */
+    public List<Suggestion> query(CharSequence constraint, int limit) {
+        String text = normalize(constraint.toString().trim());
+        if (text.length() == 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        long now = System.currentTimeMillis();
+        PriorityQueue<Entry> best = new PriorityQueue<Entry>(limit, SCORE_COMPARATOR);
+        ArrayList<Suggestion> results;
+        synchronized (mLock) {
+            boolean answered;
+            if (text.indexOf(' ') >= 0) {
+                answered = queryPhrase(text, best, limit, now);
+            } else if (text.length() <= SHORT_PREFIX) {
+                answered = queryTop(text, best, limit, now);
+            } else {
+                answered = queryPrefix(text, best, limit, now);
+            }
+            if (!answered) {
+                return null;
+            }
+            results = new ArrayList<Suggestion>(best.size());
+            while (!best.isEmpty()) {
+                Entry e = best.poll();
+                results.add(new Suggestion(e.url, e.displayTitle(), e.bookmark));
+            }
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    // The query helpers below are called with mLock held
+
+    private boolean queryTop(String prefix, PriorityQueue<Entry> best, int limit, long now) {
+        if (now - mTopBuilt > DAY) {
+            // Frecency decays with age, pick the best entries again
+            scheduleTopRebuild();
+        }
+        ArrayList<Entry> top = mTop.get(prefix);
+        if (top != null) {
+            for (Entry e : top) {
+                offer(best, e, limit, now);
+            }
+        }
+        return true;
+    }
+
+    private boolean queryPrefix(String prefix, PriorityQueue<Entry> best, int limit,
+            long now) {
+        HashSet<Entry> seen = new HashSet<Entry>();
+        for (ArrayList<Entry> entries : mKeys.subMap(
+                prefix, prefix + Character.MAX_VALUE).values()) {
+            for (Entry e : entries) {
+                if (!seen.add(e)) {
+                    continue;
+                }
+                if (seen.size() > MAX_CANDIDATES) {
+                    return false;
+                }
+                offer(best, e, limit, now);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Matches the words in order, the last one as a prefix, in the url,
+     * title or bookmark title. Candidates come from the rarest of the
+     * complete words.
+     */
+    private boolean queryPhrase(String text, PriorityQueue<Entry> best, int limit,
+            long now) {
+        ArrayList<String> words = new ArrayList<String>();
+        addWords(words, text, 1);
+        if (words.size() < 2) {
+            return words.isEmpty() || queryPrefix(words.get(0), best, limit, now);
+        }
+        ArrayList<Entry> candidates = null;
+        for (int i = 0; i < words.size() - 1; i++) {
+            ArrayList<Entry> entries = mKeys.get(words.get(i));
+            if (entries == null) {
+                if (words.get(i).length() > 1) {
+                    // Every word of two or more characters is a key
+                    return true;
+                }
+                continue;
+            }
+            if (candidates == null || entries.size() < candidates.size()) {
+                candidates = entries;
+            }
+        }
+        if (candidates == null || candidates.size() > MAX_CANDIDATES) {
+            return false;
+        }
+        for (Entry e : candidates) {
+            if (matchesPhrase(normalize(e.url), words)
+                    || matchesPhrase(e.title, words)
+                    || matchesPhrase(e.bookmarkTitle, words)) {
+                offer(best, e, limit, now);
+            }
+        }
+        return true;
+    }
+
+    private static void offer(PriorityQueue<Entry> best, Entry e, int limit, long now) {
+        e.score = frecency(e, now);
+        if (best.size() < limit) {
+            best.add(e);
+        } else if (e.score > best.peek().score) {
+            best.poll();
+            best.add(e);
+        }
+    }
+
+    static boolean matchesPhrase(String text, List<String> words) {
+        if (TextUtils.isEmpty(text)) {
+            return false;
+        }
+        ArrayList<String> tokens = new ArrayList<String>();
+        addWords(tokens, text, 1);
+        int last = words.size() - 1;
+        for (int start = 0; start + last < tokens.size(); start++) {
+            int i = 0;
+            while (i < last && tokens.get(start + i).equals(words.get(i))) {
+                i++;
+            }
+            if (i == last && tokens.get(start + last).startsWith(words.get(last))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called by {@link DataController} after it has recorded visits.
+     */
+    void recordVisits(String url, int count, long when) {
+        synchronized (mLock) {
+            Entry e = mEntries.get(url);
+            if (e == null) {
+                e = new Entry(url);
+                e.title = url;
+                mEntries.put(url, e);
+            }
+            if (!e.inHistory) {
+                e.inHistory = true;
+                mHistoryCount++;
+            }
+            e.visits += count;
+            e.lastVisited = when;
+            rekey(e);
+        }
+    }
+
+    /**
+     * Called by {@link DataController} after it has updated a title.
+     */
+    void updateTitle(String url, String title) {
+        synchronized (mLock) {
+            Entry e = mEntries.get(url);
+            if (e != null && !TextUtils.equals(e.title, title)) {
+                e.title = title;
+                rekey(e);
+            }
+        }
+    }
+
+    static float frecency(Entry e, long now) {
+        long age = now - e.lastVisited;
+        int weight;
+        if (age < 4 * DAY) {
+            weight = 100;
+        } else if (age < 14 * DAY) {
+            weight = 70;
+        } else if (age < 31 * DAY) {
+            weight = 50;
+        } else if (age < 90 * DAY) {
+            weight = 30;
+        } else {
+            weight = 10;
+        }
+        return (e.visits + (e.bookmark ? BOOKMARK_BONUS_VISITS : 0)) * weight;
+    }
+
+    static String normalize(String text) {
+        text = text.toLowerCase(Locale.ROOT);
+        for (String prefix : STRIPPED_PREFIXES) {
+            if (text.startsWith(prefix)) {
+                text = text.substring(prefix.length());
+                break;
+            }
+        }
+        if (text.startsWith("www.")) {
+            text = text.substring(4);
+        }
+        return text;
+    }
+
+    static String[] keysFor(Entry e) {
+        LinkedHashSet<String> keys = new LinkedHashSet<String>();
+        String url = normalize(e.url);
+        keys.add(url);
+        addWords(keys, url, 2);
+        addWords(keys, e.title, 2);
+        addWords(keys, e.bookmarkTitle, 2);
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    /**
+     * Adds the lower cased runs of letters and digits in text that are at
+     * least minLength long.
+     */
+    private static void addWords(Collection<String> words, String text, int minLength) {
+        if (TextUtils.isEmpty(text)) {
+            return;
+        }
+        text = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start >= minLength) {
+                    words.add(text.substring(start, i));
+                }
+                start = -1;
+            }
+        }
+    }
+
+    private void rekey(Entry e) {
+        String[] oldKeys = e.keys;
+        unkey(mKeys, e);
+        key(mKeys, e);
+        HashSet<String> prefixes = shortPrefixes(e.keys);
+        if (oldKeys != null) {
+            for (String prefix : shortPrefixes(oldKeys)) {
+                if (!prefixes.contains(prefix)) {
+                    dropTop(prefix, e);
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (String prefix : prefixes) {
+            offerTop(mTop, prefix, e, now);
+        }
+    }
+
+    private void remove(Entry e) {
+        if (e.keys != null) {
+            for (String prefix : shortPrefixes(e.keys)) {
+                dropTop(prefix, e);
+            }
+        }
+        unkey(mKeys, e);
+        mEntries.remove(e.url);
+    }
+
+    static HashSet<String> shortPrefixes(String[] keys) {
+        HashSet<String> prefixes = new HashSet<String>();
+        for (String k : keys) {
+            for (int i = 1; i <= SHORT_PREFIX && i <= k.length(); i++) {
+                prefixes.add(k.substring(0, i));
+            }
+        }
+        return prefixes;
+    }
+
+    /**
+     * Keeps e in the top entries of the prefix if it scores better than
+     * the worst of them. Scores are only compared when entries are added,
+     * queries score the kept entries again.
+     */
+    private static void offerTop(HashMap<String, ArrayList<Entry>> top, String prefix,
+            Entry e, long now) {
+        ArrayList<Entry> entries = top.get(prefix);
+        if (entries == null) {
+            entries = new ArrayList<Entry>(4);
+            top.put(prefix, entries);
+        }
+        if (entries.contains(e)) {
+            return;
+        }
+        if (entries.size() < TOP_SIZE) {
+            entries.add(e);
+            return;
+        }
+        float score = frecency(e, now);
+        int worst = -1;
+        float worstScore = score;
+        for (int i = 0; i < entries.size(); i++) {
+            float s = frecency(entries.get(i), now);
+            if (s < worstScore) {
+                worst = i;
+                worstScore = s;
+            }
+        }
+        if (worst >= 0) {
+            entries.set(worst, e);
+        }
+    }
+
+    /**
+     * Removes e from the top entries of the prefix. A full list that loses
+     * an entry is rebuilt in the background, an entry left out of it may
+     * belong in it now.
+     */
+    private void dropTop(String prefix, Entry e) {
+        ArrayList<Entry> entries = mTop.get(prefix);
+        if (entries == null || !entries.remove(e)) {
+            return;
+        }
+        if (entries.isEmpty()) {
+            mTop.remove(prefix);
+        }
+        if (entries.size() == TOP_SIZE - 1) {
+            mStaleTop.add(prefix);
+            scheduleTopRebuild();
+        }
+    }
+
+    private void scheduleTopRebuild() {
+        if (!mTopRebuildPending) {
+            mTopRebuildPending = true;
+            mHandler.post(mRebuildTop);
+        }
+    }
+
+    private static HashMap<String, ArrayList<Entry>> buildTop(
+            HashMap<String, Entry> entries, long now) {
+        HashMap<String, ArrayList<Entry>> top = new HashMap<String, ArrayList<Entry>>();
+        for (Entry e : entries.values()) {
+            for (String prefix : shortPrefixes(e.keys)) {
+                offerTop(top, prefix, e, now);
+            }
+        }
+        return top;
+    }
+
+    // Runs on the background looper
+    void rebuildTop() {
+        long now = System.currentTimeMillis();
+        synchronized (mLock) {
+            mTopRebuildPending = false;
+            if (now - mTopBuilt > DAY) {
+                mTop = buildTop(mEntries, now);
+                mTopBuilt = now;
+            } else {
+                for (String prefix : mStaleTop) {
+                    mTop.remove(prefix);
+                    HashSet<Entry> seen = new HashSet<Entry>();
+                    for (ArrayList<Entry> entries : mKeys.subMap(
+                            prefix, prefix + Character.MAX_VALUE).values()) {
+                        for (Entry e : entries) {
+                            if (seen.add(e)) {
+                                offerTop(mTop, prefix, e, now);
+                            }
+                        }
+                    }
+                }
+            }
+            mStaleTop.clear();
+        }
+    }
+
+    private static void key(TreeMap<String, ArrayList<Entry>> index, Entry e) {
+        e.keys = keysFor(e);
+        for (String k : e.keys) {
+            ArrayList<Entry> entries = index.get(k);
+            if (entries == null) {
+                entries = new ArrayList<Entry>(1);
+                index.put(k, entries);
+            }
+            entries.add(e);
+        }
+    }
+
+    private static void unkey(TreeMap<String, ArrayList<Entry>> index, Entry e) {
+        if (e.keys == null) {
+            return;
+        }
+        for (String k : e.keys) {
+            ArrayList<Entry> entries = index.get(k);
+            if (entries != null) {
+                entries.remove(e);
+                if (entries.isEmpty()) {
+                    index.remove(k);
+                }
+            }
+        }
+        e.keys = null;
+    }
+
+    private Cursor query(Uri uri, String[] projection, String selection, String[] args) {
+        try {
+            return mContext.getContentResolver().query(uri, projection, selection, args, null);
+        } catch (RuntimeException e) {
+            Log.w(LOGTAG, "Failed to query " + uri, e);
+            return null;
+        }
+    }
+
+    // Runs on the background looper, as do the refreshes
+    void load() {
+        HashMap<String, Entry> entries = new HashMap<String, Entry>();
+        TreeMap<String, ArrayList<Entry>> keys = new TreeMap<String, ArrayList<Entry>>();
+        int historyCount = 0;
+        long highWater = 0;
+        Cursor c = query(History.CONTENT_URI, HISTORY_PROJECTION, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                String url = c.getString(0);
+                if (url == null || entries.containsKey(url)) {
+                    continue;
+                }
+                Entry e = new Entry(url);
+                e.title = c.getString(1);
+                e.visits = c.getInt(2);
+                e.lastVisited = c.getLong(3);
+                e.inHistory = true;
+                entries.put(url, e);
+                historyCount++;
+                highWater = Math.max(highWater, e.lastVisited);
+            }
+        } finally {
+            c.close();
+        }
+        c = query(Bookmarks.CONTENT_URI, BOOKMARKS_PROJECTION,
+                Bookmarks.IS_FOLDER + "=0", null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    String url = c.getString(0);
+                    if (url == null) {
+                        continue;
+                    }
+                    Entry e = entries.get(url);
+                    if (e == null) {
+                        e = new Entry(url);
+                        entries.put(url, e);
+                    }
+                    e.bookmark = true;
+                    e.bookmarkTitle = c.getString(1);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        for (Entry e : entries.values()) {
+            key(keys, e);
+        }
+        long now = System.currentTimeMillis();
+        HashMap<String, ArrayList<Entry>> top = buildTop(entries, now);
+        synchronized (mLock) {
+            mEntries = entries;
+            mKeys = keys;
+            mTop = top;
+            mTopBuilt = now;
+            mStaleTop.clear();
+            mHistoryCount = historyCount;
+            mHighWater = highWater;
+        }
+        mLoaded = true;
+    }
+
+    void refreshHistory() {
+        long highWater;
+        synchronized (mLock) {
+            highWater = mHighWater;
+        }
+        Cursor c = query(History.CONTENT_URI, HISTORY_PROJECTION,
+                History.DATE_LAST_VISITED + ">=?", new String[] { Long.toString(highWater) });
+        if (c == null) {
+            return;
+        }
+        try {
+            synchronized (mLock) {
+                while (c.moveToNext()) {
+                    String url = c.getString(0);
+                    if (url == null) {
+                        continue;
+                    }
+                    Entry e = mEntries.get(url);
+                    if (e == null) {
+                        e = new Entry(url);
+                        mEntries.put(url, e);
+                    }
+                    if (!e.inHistory) {
+                        e.inHistory = true;
+                        mHistoryCount++;
+                    }
+                    e.title = c.getString(1);
+                    e.visits = c.getInt(2);
+                    e.lastVisited = c.getLong(3);
+                    mHighWater = Math.max(mHighWater, e.lastVisited);
+                    rekey(e);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        // Rows only ever disappear through deletes, which we can't replay
+        // incrementally. Fall back to a rebuild when the counts disagree.
+        c = query(History.CONTENT_URI, COUNT_PROJECTION, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            int count = c.moveToFirst() ? c.getInt(0) : 0;
+            synchronized (mLock) {
+                if (count == mHistoryCount) {
+                    return;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        load();
+    }
+
+    void refreshBookmarks() {
+        HashMap<String, String> bookmarks = new HashMap<String, String>();
+        Cursor c = query(Bookmarks.CONTENT_URI, BOOKMARKS_PROJECTION,
+                Bookmarks.IS_FOLDER + "=0", null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                String url = c.getString(0);
+                if (url != null) {
+                    bookmarks.put(url, c.getString(1));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        synchronized (mLock) {
+            ArrayList<Entry> removed = new ArrayList<Entry>();
+            for (Entry e : mEntries.values()) {
+                if (e.bookmark && !bookmarks.containsKey(e.url)) {
+                    e.bookmark = false;
+                    e.bookmarkTitle = null;
+                    if (e.inHistory) {
+                        rekey(e);
+                    } else {
+                        removed.add(e);
+                    }
+                }
+            }
+            for (Entry e : removed) {
+                remove(e);
+            }
+            for (String url : bookmarks.keySet()) {
+                String title = bookmarks.get(url);
+                Entry e = mEntries.get(url);
+                if (e == null) {
+                    e = new Entry(url);
+                    mEntries.put(url, e);
+                } else if (e.bookmark && TextUtils.equals(e.bookmarkTitle, title)) {
+                    continue;
+                }
+                e.bookmark = true;
+                e.bookmarkTitle = title;
+                rekey(e);
+            }
+        }
+    }
+}
@@ -59,9 +59,6 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             OmniboxSuggestions.IS_BOOKMARK
             };
 
-    private static final String COMBINED_SELECTION =
-            "(url LIKE ? OR url LIKE ? OR url LIKE ? OR url LIKE ? OR title LIKE ?)";
-
     final Context mContext;
     final Filter mFilter;
     SuggestionResults mMixedResults;
@@ -74,6 +71,7 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
     final Object mResultsLock = new Object();
     boolean mIncognitoMode;
     BrowserSettings mSettings;
+    final SuggestionIndex mIndex;
 
     interface CompletionListener {
 
@@ -93,6 +91,7 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
                 getInteger(R.integer.max_suggest_lines_landscape);
 
         mFilter = new SuggestFilter();
+        mIndex = SuggestionIndex.getInstance(ctx);
         addSource(new CombinedCursor());
     }
 
@@ -411,12 +410,46 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
     }
 
     /**
-     * combined bookmark & history source
+     * combined bookmark & history source, answered from the in-memory
+     * {@link SuggestionIndex} once it has loaded
      */
     class CombinedCursor extends CursorSource {
 
+        List<SuggestionIndex.Suggestion> mIndexed;
+        int mIndexedPosition;
+
+        @Override
+        boolean moveToNext() {
+            if (mIndexed != null) {
+                return ++mIndexedPosition < mIndexed.size();
+            }
+            return super.moveToNext();
+        }
+
+        @Override
+        public int getCount() {
+            if (mIndexed != null) {
+                return mIndexed.size();
+            }
+            return super.getCount();
+        }
+
+        @Override
+        public void close() {
+            mIndexed = null;
+            super.close();
+        }
+
         @Override
         public SuggestItem getItem() {
+            if (mIndexed != null) {
+                if (mIndexedPosition >= mIndexed.size()) {
+                    return null;
+                }
+                SuggestionIndex.Suggestion s = mIndexed.get(mIndexedPosition);
+                return new SuggestItem(getTitle(s.title, s.url), getUrl(s.title, s.url),
+                        s.isBookmark ? TYPE_BOOKMARK : TYPE_HISTORY);
+            }
             if ((mCursor != null) && (!mCursor.isAfterLast())) {
                 String title = mCursor.getString(1);
                 String url = mCursor.getString(2);
@@ -432,30 +465,22 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             // constraint != null
             if (mCursor != null) {
                 mCursor.close();
+                mCursor = null;
             }
-            String like = constraint + "%";
-            String[] args = null;
-            String selection = null;
-            if (like.startsWith("http") || like.startsWith("file")) {
-                args = new String[1];
-                args[0] = like;
-                selection = "url LIKE ?";
-            } else {
-                args = new String[5];
-                args[0] = "http://" + like;
-                args[1] = "http://www." + like;
-                args[2] = "https://" + like;
-                args[3] = "https://www." + like;
-                // To match against titles.
-                args[4] = like;
-                selection = COMBINED_SELECTION;
+            int limit = Math.max(mLinesLandscape, mLinesPortrait);
+            mIndexed = mIndex.isLoaded() ? mIndex.query(constraint, limit) : null;
+            if (mIndexed != null) {
+                mIndexedPosition = 0;
+                return;
             }
+            // The provider matches the typed text against its full text index
             Uri.Builder ub = OmniboxSuggestions.CONTENT_URI.buildUpon();
-            ub.appendQueryParameter(BrowserContract.PARAM_LIMIT,
-                    Integer.toString(Math.max(mLinesLandscape, mLinesPortrait)));
+            ub.appendQueryParameter(BrowserContract.PARAM_LIMIT, Integer.toString(limit));
+            ub.appendQueryParameter(OmniboxSuggestions.QUERY_PARAMETER_FILTER,
+                    constraint.toString());
             mCursor =
                     mContext.getContentResolver().query(ub.build(), COMBINED_PROJECTION,
-                            selection, (constraint != null) ? args : null, null);
+                            null, null, null);
             if (mCursor != null) {
                 mCursor.moveToFirst();
             }
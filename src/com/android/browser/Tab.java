@@ -151,6 +151,11 @@ class Tab implements PictureListener {
     // information needed to restore the WebView if the user goes back to the
     // tab.
     private Bundle mSavedState;
+    // True if the state has changed since it was last handed to crash
+    // recovery.
+    private boolean mStateDirty = true;
+    // Uptime at which the tab was last in the foreground
+    private long mLastShownTime = SystemClock.uptimeMillis();
     // Parent Tab. This is the Tab that created this Tab, or null if the Tab was
     // created by the UI
     private Tab mParent;
@@ -194,6 +199,12 @@ class Tab implements PictureListener {
     private int mCaptureWidth;
     private int mCaptureHeight;
     private Bitmap mCapture;
+    // Compressed capture loaded from disk, decoded into mCapture on first use
+    private byte[] mCaptureBlob;
+    // True if mCapture was dropped by hibernate(), and is to be reloaded
+    // from disk when it is next needed
+    private boolean mCaptureHibernated;
+    private boolean mCaptureReloading;
     private Handler mHandler;
     private boolean mUpdateThumbnail;
 
@@ -347,6 +358,7 @@ class Tab implements PictureListener {
             mInPageLoad = true;
             mUpdateThumbnail = true;
             mPageLoadProgress = INITIAL_PROGRESS;
+            mStateDirty = true;
             mCurrentState = new PageState(mContext,
                     view.isPrivateBrowsingEnabled(), url, favicon);
             mLoadStartTime = SystemClock.uptimeMillis();
@@ -527,6 +539,7 @@ class Tab implements PictureListener {
         @Override
         public void doUpdateVisitedHistory(WebView view, String url,
                 boolean isReload) {
+            mStateDirty = true;
             mWebViewController.doUpdateVisitedHistory(Tab.this, isReload);
         }
 
@@ -659,6 +672,7 @@ class Tab implements PictureListener {
     };
 
     private void syncCurrentState(WebView view, String url) {
+        mStateDirty = true;
         // Sync state (in case of stop/timeout)
         mCurrentState.mUrl = view.getUrl();
         if (mCurrentState.mUrl == null) {
@@ -826,6 +840,7 @@ class Tab implements PictureListener {
         @Override
         public void onReceivedTitle(WebView view, final String title) {
             mCurrentState.mTitle = title;
+            mStateDirty = true;
             mWebViewController.onReceivedTitle(Tab.this, title);
         }
 
@@ -1306,7 +1321,14 @@ class Tab implements PictureListener {
             if (tc != null && tc.getOnThumbnailUpdatedListener() != null) {
                 mMainView.setPictureListener(this);
             }
+            synchronized (Tab.this) {
+                if (mCaptureHibernated) {
+                    // The WebView will paint a new one
+                    reloadHibernatedCapture();
+                }
+            }
             if (restore && (mSavedState != null)) {
+                resolveSavedState();
                 restoreUserAgent();
                 WebBackForwardList restoredState
                         = mMainView.restoreState(mSavedState);
@@ -1402,6 +1424,7 @@ class Tab implements PictureListener {
             throw new IllegalStateException("Cannot set parent to self!");
         }
         mParent = parent;
+        mStateDirty = true;
         // This tab may have been freed due to low memory. If that is the case,
         // the parent tab id is already saved. If we are changing that id
         // (most likely due to removing the parent tab) we must update the
@@ -1485,6 +1508,7 @@ class Tab implements PictureListener {
             return;
         }
         mInForeground = true;
+        mLastShownTime = SystemClock.uptimeMillis();
         resume();
         Activity activity = mWebViewController.getActivity();
         mMainView.setOnCreateContextMenuListener(activity);
@@ -1504,6 +1528,7 @@ class Tab implements PictureListener {
         }
         capture();
         mInForeground = false;
+        mLastShownTime = SystemClock.uptimeMillis();
         pause();
         mMainView.setOnCreateContextMenuListener(null);
         if (mSubView != null) {
@@ -1515,6 +1540,14 @@ class Tab implements PictureListener {
         return mInForeground;
     }
 
+    /**
+     * Returns the {@link SystemClock#uptimeMillis()} at which the tab was
+     * last in the foreground.
+     */
+    long getLastShownTime() {
+        return mInForeground ? SystemClock.uptimeMillis() : mLastShownTime;
+    }
+
     /**
      * Return the top window of this tab; either the subwindow if it is not
      * null or the main window.
@@ -1618,6 +1651,7 @@ class Tab implements PictureListener {
      */
     void setAppId(String id) {
         mAppId = id;
+        mStateDirty = true;
     }
 
     boolean closeOnBack() {
@@ -1626,6 +1660,7 @@ class Tab implements PictureListener {
 
     void setCloseOnBack(boolean close) {
         mCloseOnBack = close;
+        mStateDirty = true;
     }
 
     String getUrl() {
@@ -1727,6 +1762,7 @@ class Tab implements PictureListener {
         // If the WebView is null it means we ran low on memory and we already
         // stored the saved state in mSavedState.
         if (mMainView == null) {
+            // Crash recovery fills in the rest of a partial state itself
             return mSavedState;
         }
 
@@ -1758,6 +1794,77 @@ class Tab implements PictureListener {
         return mSavedState;
     }
 
+    /**
+     * Crash recovery only decodes the current tab up front, and hibernated
+     * tabs keep their state on disk, so these tabs only have a summary. Fill
+     * in the rest before the WebView is restored.
+     */
+    private void resolveSavedState() {
+        CrashRecoveryHandler crashRecoveryHandler = CrashRecoveryHandler.getInstance();
+        if (crashRecoveryHandler != null) {
+            mSavedState = crashRecoveryHandler.resolveTabState(mSavedState, true);
+        }
+        if (mSavedState != null && mSavedState.containsKey(TabHibernator.FAVICON)) {
+            byte[] favicon = mSavedState.getByteArray(TabHibernator.FAVICON);
+            if (mCurrentState.mFavicon == null && favicon != null) {
+                mCurrentState.mFavicon = BitmapFactory.decodeByteArray(
+                        favicon, 0, favicon.length);
+            }
+            mSavedState.remove(TabHibernator.FAVICON);
+        }
+    }
+
+    /**
+     * Frees the WebView like {@link #destroy()}, and moves the saved state,
+     * favicon and capture out of the heap. The capture is already in the
+     * thumbnail store, the rest goes to the {@link TabHibernator}. The url
+     * and title are kept for the tab switcher.
+     */
+    void hibernate() {
+        Bundle state = saveState();
+        PageState pageState = mCurrentState;
+        destroy();
+        if (state == null || state.getBoolean(CrashRecoveryHandler.PARTIAL_STATE)) {
+            return;
+        }
+        Bundle hibernated = new Bundle(state);
+        if (pageState.mFavicon != null) {
+            ByteArrayOutputStream favicon = new ByteArrayOutputStream();
+            if (pageState.mFavicon.compress(CompressFormat.PNG, 100, favicon)) {
+                hibernated.putByteArray(TabHibernator.FAVICON, favicon.toByteArray());
+            }
+        }
+        TabHibernator.getInstance(mContext).hibernate(mId, hibernated);
+        mSavedState = CrashRecoveryHandler.summarize(state);
+        // destroy() reset the page state
+        mCurrentState = new PageState(mContext, pageState.mIncognito,
+                pageState.mUrl, null);
+        mCurrentState.mOriginalUrl = pageState.mOriginalUrl;
+        mCurrentState.mTitle = pageState.mTitle;
+        // The lock icon shows what the page had, not what its url implies
+        mCurrentState.mSecurityState = pageState.mSecurityState;
+        mCurrentState.mSslCertificateError = pageState.mSslCertificateError;
+        synchronized (Tab.this) {
+            if (mCapture != null) {
+                mCapture = null;
+                mCaptureBlob = null;
+                mCaptureHibernated = true;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the state has changed since the last call to
+     * {@link #clearStateDirty()}.
+     */
+    boolean isStateDirty() {
+        return mStateDirty;
+    }
+
+    void clearStateDirty() {
+        mStateDirty = false;
+    }
+
     /*
      * Restore the state of the tab.
      */
@@ -1766,6 +1873,8 @@ class Tab implements PictureListener {
         if (mSavedState == null) {
             return;
         }
+        // The saved state came from crash recovery, so it is already there.
+        mStateDirty = false;
         // Restore the internal state even if the WebView fails to restore.
         // This will maintain the app id, original url and close-on-exit values.
         mId = b.getLong(ID);
@@ -1811,10 +1920,36 @@ class Tab implements PictureListener {
 
     public Bitmap getScreenshot() {
         synchronized (Tab.this) {
+            if (mCaptureHibernated) {
+                reloadHibernatedCapture();
+                if (mCapture != null) {
+                    mCaptureReloading = true;
+                    DataController.getInstance(mContext).loadThumbnail(this);
+                }
+            }
+            return getCapture();
+        }
+    }
+
+    /**
+     * Like {@link #getScreenshot()}, but leaves the capture of a hibernated
+     * tab on disk.
+     */
+    Bitmap getCapture() {
+        synchronized (Tab.this) {
+            if (mCaptureBlob != null) {
+                decodeCaptureBlob();
+            }
             return mCapture;
         }
     }
 
+    // Must be called with the Tab lock held
+    private void reloadHibernatedCapture() {
+        mCaptureHibernated = false;
+        updateShouldCaptureThumbnails();
+    }
+
     public boolean isSnapshot() {
         return false;
     }
@@ -1887,6 +2022,10 @@ class Tab implements PictureListener {
         if (mMainView.getContentWidth() <= 0 || mMainView.getContentHeight() <= 0) {
             return;
         }
+        synchronized (Tab.this) {
+            // A fresh capture supersedes whatever was loaded from disk
+            mCaptureBlob = null;
+        }
         Canvas c = new Canvas(mCapture);
         final int left = mMainView.getScrollX();
         final int top = mMainView.getScrollY() + mMainView.getVisibleTitleHeight();
@@ -1970,20 +2109,54 @@ class Tab implements PictureListener {
         DataController.getInstance(mContext).deleteThumbnail(this);
     }
 
+    /**
+     * Holds on to a stored capture. Decoding is deferred until
+     * {@link #getScreenshot()} is first called, as most restored tabs are
+     * never shown in the tab switcher.
+     */
     void updateCaptureFromBlob(byte[] blob) {
         synchronized (Tab.this) {
             if (mCapture == null) {
                 return;
             }
-            ByteBuffer buffer = ByteBuffer.wrap(blob);
-            try {
-                mCapture.copyPixelsFromBuffer(buffer);
-            } catch (RuntimeException rex) {
-                Log.e(LOGTAG, "Load capture has mismatched sizes; buffer: "
-                        + buffer.capacity() + " blob: " + blob.length
-                        + "capture: " + mCapture.getByteCount());
-                throw rex;
+            mCaptureBlob = blob;
+            if (!mCaptureReloading) {
+                return;
+            }
+            mCaptureReloading = false;
+        }
+        // Someone is showing the blank capture of a hibernated tab
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                TabControl tc = mWebViewController.getTabControl();
+                if (tc != null && tc.getOnThumbnailUpdatedListener() != null) {
+                    tc.getOnThumbnailUpdatedListener().onThumbnailUpdated(Tab.this);
+                }
             }
+        });
+    }
+
+    // Must be called with the Tab lock held
+    private void decodeCaptureBlob() {
+        byte[] blob = mCaptureBlob;
+        mCaptureBlob = null;
+        if (mCapture == null) {
+            return;
+        }
+        if (blob.length == mCapture.getByteCount()) {
+            // Uncompressed capture written by an older version
+            mCapture.copyPixelsFromBuffer(ByteBuffer.wrap(blob));
+            return;
+        }
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inPreferredConfig = mCapture.getConfig();
+        opts.inMutable = true;
+        opts.inBitmap = mCapture;
+        try {
+            BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOGTAG, "Failed to decode stored capture of " + blob.length + " bytes", e);
         }
     }
 
@@ -17,13 +17,17 @@
 package com.android.browser;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.util.Log;
 import android.webkit.WebView;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Vector;
 
 class TabControl {
     // Log Tag
@@ -32,8 +36,12 @@ class TabControl {
     // next Tab ID, starting at 1
     private static long sNextId = 1;
 
-    private static final String POSITIONS = "positions";
-    private static final String CURRENT = "current";
+    // Time between freeing tabs when trimming memory
+    private static final long EVICT_STEP_DELAY = 200;
+    private static final int MAX_EVICTIONS_LOGGED = 20;
+
+    static final String POSITIONS = "positions";
+    static final String CURRENT = "current";
 
     public static interface OnThumbnailUpdatedListener {
         void onThumbnailUpdated(Tab t);
@@ -52,6 +60,15 @@ class TabControl {
 
     private OnThumbnailUpdatedListener mOnThumbnailUpdatedListener;
 
+    private boolean mWarmUpScheduled;
+
+    private TabEvictionPolicy mEvictionPolicy = new ScoredTabEvictionPolicy();
+    private final Handler mEvictHandler = new Handler();
+    // Number of background WebViews to trim down to, -1 if not trimming
+    private int mTrimTarget = -1;
+    private String mTrimReason;
+    private final LinkedList<String> mEvictions = new LinkedList<String>();
+
     /**
      * Construct a new TabControl object
      */
@@ -253,6 +270,7 @@ class TabControl {
 
         // destroy the tab
         t.destroy();
+        TabHibernator.getInstance(mController.getContext()).discard(t.getId());
         // clear it's references to parent and children
         t.removeFromTree();
 
@@ -297,6 +315,7 @@ class TabControl {
         int i = 0;
         for (Tab tab : mTabs) {
             Bundle tabState = tab.saveState();
+            tab.clearStateDirty();
             if (tabState != null) {
                 ids[i++] = tab.getId();
                 String key = Long.toString(tab.getId());
@@ -326,6 +345,44 @@ class TabControl {
         }
     }
 
+    /**
+     * Save the state of at most maxTabs tabs that changed since they were last
+     * saved, along with the tab positions and the current tab. Tabs whose
+     * state can't be saved are written as null so that crash recovery drops
+     * them. The result has the same layout as {@link #saveState(Bundle)} and
+     * is meant to be merged over an earlier full state.
+     * @return true if there are still tabs left to save
+     */
+    boolean saveDirtyState(Bundle outState, int maxTabs) {
+        final int numTabs = getTabCount();
+        long[] ids = new long[numTabs];
+        int i = 0;
+        int saved = 0;
+        boolean remaining = false;
+        for (Tab tab : mTabs) {
+            ids[i++] = tab.getId();
+            if (!tab.isStateDirty()) {
+                continue;
+            }
+            if (saved == maxTabs) {
+                remaining = true;
+                continue;
+            }
+            Bundle tabState = tab.saveState();
+            tab.clearStateDirty();
+            if (tabState == null) {
+                // Since we won't be restoring the thumbnail, delete it
+                tab.deleteThumbnail();
+            }
+            outState.putBundle(Long.toString(tab.getId()), tabState);
+            saved++;
+        }
+        outState.putLongArray(POSITIONS, ids);
+        Tab current = getCurrentTab();
+        outState.putLong(CURRENT, current != null ? current.getId() : -1);
+        return remaining;
+    }
+
     /**
      * Check if the state can be restored.  If the state can be restored, the
      * current tab id is returned.  This can be passed to restoreState below
@@ -442,24 +499,29 @@ class TabControl {
                 }
             }
         }
+        // The restored state is what crash recovery already has, including
+        // the parent tabs, so there is nothing to back up yet.
+        for (Tab tab : tabMap.values()) {
+            tab.clearStateDirty();
+        }
     }
 
     /**
-     * Free the memory in this order, 1) free the background tabs; 2) free the
-     * WebView cache;
+     * Free the memory in this order, 1) free half of the background tabs
+     * with the highest eviction scores; 2) free the WebView cache;
      */
     void freeMemory() {
         if (getTabCount() == 0) return;
 
-        // free the least frequently used background tabs
-        Vector<Tab> tabs = getHalfLeastUsedTabs(getCurrentTab());
-        if (tabs.size() > 0) {
-            Log.w(LOGTAG, "Free " + tabs.size() + " tabs in the browser");
-            for (Tab t : tabs) {
-                // store the WebView's state.
-                t.saveState();
-                // destroy the tab
-                t.destroy();
+        // free the background tabs that gain the most
+        int openTabs = getBackgroundWebViewCount();
+        if (openTabs > 0) {
+            int keep = openTabs / 2;
+            Log.w(LOGTAG, "Free " + (openTabs - keep) + " tabs in the browser");
+            while (getBackgroundWebViewCount() > keep) {
+                if (!evictTab("low memory")) {
+                    break;
+                }
             }
             return;
         }
@@ -472,38 +534,117 @@ class TabControl {
         }
     }
 
-    private Vector<Tab> getHalfLeastUsedTabs(Tab current) {
-        Vector<Tab> tabsToGo = new Vector<Tab>();
+    /**
+     * Frees background tabs one at a time until no more than the eviction
+     * policy allows for the trim level are left.
+     * @param level One of the {@link android.content.ComponentCallbacks2}
+     *        TRIM_MEMORY levels
+     */
+    void trimMemory(int level) {
+        int keep = mEvictionPolicy.getTabsToKeep(level);
+        if (keep == Integer.MAX_VALUE) {
+            return;
+        }
+        // A lower target from a later trim wins over a pending one
+        if (mTrimTarget < 0 || keep < mTrimTarget) {
+            mTrimTarget = keep;
+            mTrimReason = "trim level " + level;
+        }
+        mEvictHandler.removeCallbacks(mEvictStep);
+        mEvictHandler.post(mEvictStep);
+    }
 
-        // Don't do anything if we only have 1 tab or if the current tab is
-        // null.
-        if (getTabCount() == 1 || current == null) {
-            return tabsToGo;
+    // Frees one tab, and comes back for the next one after the UI has had a
+    // chance to run
+    private final Runnable mEvictStep = new Runnable() {
+        @Override
+        public void run() {
+            if (mTrimTarget >= 0 && getBackgroundWebViewCount() > mTrimTarget
+                    && evictTab(mTrimReason)) {
+                mEvictHandler.postDelayed(this, EVICT_STEP_DELAY);
+            } else {
+                mTrimTarget = -1;
+            }
         }
+    };
 
-        if (mTabQueue.size() == 0) {
-            return tabsToGo;
+    void setEvictionPolicy(TabEvictionPolicy policy) {
+        mEvictionPolicy = policy;
+    }
+
+    private int getBackgroundWebViewCount() {
+        Tab current = getCurrentTab();
+        int count = 0;
+        for (Tab t : mTabs) {
+            if (t != current && t.getWebView() != null) {
+                count++;
+            }
         }
+        return count;
+    }
 
-        // Rip through the queue starting at the beginning and tear down half of
-        // available tabs which are not the current tab or the parent of the
-        // current tab.
-        int openTabCount = 0;
+    /**
+     * Frees the background tab with the highest eviction score.
+     * @return false if no tab could be freed
+     */
+    private boolean evictTab(String reason) {
+        Tab current = getCurrentTab();
+        long now = SystemClock.uptimeMillis();
+        Tab victim = null;
+        float best = 0;
         for (Tab t : mTabQueue) {
-            if (t != null && t.getWebView() != null) {
-                openTabCount++;
-                if (t != current && t != current.getParent()) {
-                    tabsToGo.add(t);
-                }
+            if (t == null || t == current || t.getWebView() == null) {
+                continue;
+            }
+            float score = mEvictionPolicy.score(t, current, now);
+            if (score >= 0 && (victim == null || score > best)) {
+                victim = t;
+                best = score;
             }
         }
-
-        openTabCount /= 2;
-        if (tabsToGo.size() > openTabCount) {
-            tabsToGo.setSize(openTabCount);
+        if (victim == null) {
+            return false;
+        }
+        String decision = reason + ": evicted " + victim.getId() + " "
+                + victim.getUrl() + " score=" + best;
+        Log.w(LOGTAG, decision);
+        if (mEvictions.size() == MAX_EVICTIONS_LOGGED) {
+            mEvictions.removeFirst();
         }
+        mEvictions.addLast(decision);
+        // move the WebView's state to disk and destroy the tab
+        victim.hibernate();
+        return true;
+    }
 
-        return tabsToGo;
+    /**
+     * Returns the current eviction score of every tab and the most recent
+     * eviction decisions, for debugging.
+     */
+    String dumpEvictionState() {
+        Tab current = getCurrentTab();
+        long now = SystemClock.uptimeMillis();
+        StringBuilder sb = new StringBuilder();
+        for (Tab t : mTabQueue) {
+            sb.append(t.getId());
+            if (t == current) {
+                sb.append(" current");
+            } else if (t.getWebView() == null) {
+                sb.append(" freed");
+            } else {
+                sb.append(" score=").append(mEvictionPolicy.score(t, current, now))
+                        .append(" footprint=")
+                        .append(ScoredTabEvictionPolicy.estimateFootprint(t))
+                        .append("KB");
+            }
+            sb.append(" idle=").append((now - t.getLastShownTime()) / 1000)
+                    .append("s ").append(t.getUrl()).append('\n');
+        }
+        for (String decision : mEvictions) {
+            sb.append(decision).append('\n');
+        }
+        sb.append(TabHibernator.getInstance(mController.getContext()).dump());
+        return sb.toString();
     }
 
     Tab getLeastUsedTab(Tab current) {
@@ -613,6 +754,37 @@ class TabControl {
         }
     }
 
+    /**
+     * Once the UI thread is idle, create the WebView of the tab the user is
+     * most likely to switch to next, so that switching to it doesn't have to
+     * wait for the WebView.
+     */
+    void scheduleWarmUp() {
+        if (mWarmUpScheduled) {
+            return;
+        }
+        mWarmUpScheduled = true;
+        Looper.myQueue().addIdleHandler(mWarmUp);
+    }
+
+    private final MessageQueue.IdleHandler mWarmUp = new MessageQueue.IdleHandler() {
+
+        @Override
+        public boolean queueIdle() {
+            mWarmUpScheduled = false;
+            // The most recently used tab after the current one
+            if (mTabQueue.size() < 2) {
+                return false;
+            }
+            Tab tab = mTabQueue.get(mTabQueue.size() - 2);
+            if (tab.getWebView() == null && tab != getCurrentTab()) {
+                tab.setWebView(createNewWebView(tab.isPrivateBrowsingEnabled()));
+                tab.putInBackground();
+            }
+            return false;
+        }
+    };
+
     /**
      * Creates a new WebView and registers it with the global settings.
      */
@@ -667,7 +839,7 @@ class TabControl {
         boolean needRestore = mainView == null;
         if (needRestore) {
             // Same work as in createNewTab() except don't do new Tab()
-            mainView = createNewWebView();
+            mainView = createNewWebView(newTab.isPrivateBrowsingEnabled());
             newTab.setWebView(mainView);
         }
         newTab.putInForeground();
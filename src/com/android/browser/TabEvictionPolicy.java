@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.browser;
+
+/**
+ * Decides which background tabs lose their WebView when memory runs low.
+ */
+public interface TabEvictionPolicy {
+
+    /**
+     * Returns how much is gained by freeing the tab's WebView, higher scores
+     * are evicted first. A negative score keeps the tab.
+     * @param tab A background tab with a WebView
+     * @param current The current tab
+     * @param now {@link android.os.SystemClock#uptimeMillis()}
+     */
+    float score(Tab tab, Tab current, long now);
+
+    /**
+     * Returns how many background tabs may keep their WebView at the given
+     * {@link android.content.ComponentCallbacks2} trim level.
+     */
+    int getTabsToKeep(int level);
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.browser;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.browser.provider.ThumbnailStore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Keeps the saved state of tabs whose WebView was freed on disk instead of
+ * in the heap. The tab keeps a summary of its state, see
+ * {@link CrashRecoveryHandler#PARTIAL_STATE}, and the rest is read back when
+ * the tab is shown again. Crash recovery reads the full state from here on
+ * its background thread rather than having the tab load it.
+ *
+ * Files only live as long as the process, whatever crash recovery needs is
+ * copied into its own snapshot.
+ */
+public class TabHibernator {
+
+    private static final String LOGTAG = "TabHibernator";
+
+    private static final String DIRECTORY = "hibernated";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * The favicon of the page as PNG bytes, kept with the state since the
+     * tab drops it. A Bitmap this large would go to ashmem, which a
+     * marshalled Parcel cannot hold.
+     */
+    static final String FAVICON = "hibernatedFavicon";
+
+    private static TabHibernator sInstance;
+
+    private final File mDir;
+    private final Handler mHandler;
+
+    // All of the following are guarded by this
+    // States that are not on disk yet
+    private final HashMap<Long, Bundle> mPending = new HashMap<Long, Bundle>();
+    // Size of each file on disk
+    private final HashMap<Long, Long> mSizes = new HashMap<Long, Long>();
+    private long mBytesOnDisk;
+    private int mHibernations;
+    private int mRehydrations;
+    private long mTotalRehydrationTime;
+    private long mMaxRehydrationTime;
+
+    /* package */ static synchronized TabHibernator getInstance(Context c) {
+        if (sInstance == null) {
+            sInstance = new TabHibernator(c);
+        }
+        return sInstance;
+    }
+
+    private TabHibernator(Context c) {
+        mDir = new File(c.getApplicationContext().getCacheDir(), DIRECTORY);
+        mHandler = new Handler(BackgroundHandler.getLooper());
+        // Left behind by an earlier process
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                String[] names = mDir.list();
+                if (names != null) {
+                    for (String name : names) {
+                        new File(mDir, name).delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the state out in the background. Until it is written it is
+     * served from memory.
+     */
+    void hibernate(final long id, final Bundle state) {
+        synchronized (this) {
+            mPending.put(id, state);
+            mHibernations++;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                write(id, state);
+            }
+        });
+    }
+
+    private void write(long id, Bundle state) {
+        synchronized (this) {
+            if (mPending.get(id) != state) {
+                // Rehydrated or hibernated again since
+                return;
+            }
+        }
+        Parcel p = Parcel.obtain();
+        long size = 0;
+        try {
+            state.writeToParcel(p, 0);
+            byte[] data = p.marshall();
+            if (!mDir.exists() && !mDir.mkdirs()) {
+                throw new IOException("Unable to create " + mDir);
+            }
+            File tmp = new File(mDir, id + TEMP_SUFFIX);
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(getFile(id))) {
+                tmp.delete();
+                throw new IOException("Unable to rename " + tmp);
+            }
+            size = data.length;
+        } catch (Throwable e) {
+            // Keep serving it from memory
+            Log.w(LOGTAG, "Failed to hibernate tab " + id, e);
+            return;
+        } finally {
+            p.recycle();
+        }
+        synchronized (this) {
+            if (mPending.get(id) != state) {
+                // Discarded while we were writing
+                getFile(id).delete();
+                return;
+            }
+            mPending.remove(id);
+            setSize(id, size);
+        }
+    }
+
+    private File getFile(long id) {
+        return new File(mDir, Long.toString(id));
+    }
+
+    // Must be called with the lock held
+    private void setSize(long id, long size) {
+        Long old = size > 0 ? mSizes.put(id, size) : mSizes.remove(id);
+        mBytesOnDisk += size - (old != null ? old : 0);
+    }
+
+    /**
+     * Returns the state of a hibernated tab without discarding it, or null if
+     * the tab isn't hibernated.
+     */
+    Bundle read(long id) {
+        synchronized (this) {
+            Bundle pending = mPending.get(id);
+            if (pending != null) {
+                return new Bundle(pending);
+            }
+            if (!mSizes.containsKey(id)) {
+                return null;
+            }
+        }
+        Parcel p = Parcel.obtain();
+        try {
+            byte[] data = ThumbnailStore.readFully(new FileInputStream(getFile(id)));
+            p.unmarshall(data, 0, data.length);
+            p.setDataPosition(0);
+            return p.readBundle();
+        } catch (Throwable e) {
+            Log.w(LOGTAG, "Failed to read hibernated tab " + id, e);
+            return null;
+        } finally {
+            p.recycle();
+        }
+    }
+
+    /**
+     * Returns the state of a hibernated tab that is being shown again and
+     * discards it, or null if the tab isn't hibernated.
+     */
+    Bundle rehydrate(long id) {
+        long start = SystemClock.uptimeMillis();
+        Bundle state = read(id);
+        if (state == null) {
+            return null;
+        }
+        long time = SystemClock.uptimeMillis() - start;
+        synchronized (this) {
+            mRehydrations++;
+            mTotalRehydrationTime += time;
+            mMaxRehydrationTime = Math.max(mMaxRehydrationTime, time);
+        }
+        discard(id);
+        return state;
+    }
+
+    /**
+     * Forgets a hibernated tab, e.g. when it is closed.
+     */
+    void discard(final long id) {
+        synchronized (this) {
+            boolean pending = mPending.remove(id) != null;
+            if (!pending && !mSizes.containsKey(id)) {
+                return;
+            }
+            setSize(id, 0);
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                getFile(id).delete();
+            }
+        });
+    }
+
+    /**
+     * Returns the counters, for debugging.
+     */
+    synchronized String dump() {
+        int hibernated = mPending.size() + mSizes.size();
+        return "hibernated tabs=" + hibernated + " (" + mHibernations + " total)"
+                + " on disk=" + mBytesOnDisk / 1024 + "KB"
+                + " rehydrations=" + mRehydrations
+                + " avg=" + (mRehydrations > 0 ? mTotalRehydrationTime / mRehydrations : 0)
+                + "ms max=" + mMaxRehydrationTime + "ms";
+    }
+}
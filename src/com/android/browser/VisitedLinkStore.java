@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.provider.BrowserContract.History;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The set of visited urls handed to WebViews for link coloring.
+ *
+ * The urls are kept in an append-only file of newline terminated UTF-8
+ * records, with an in-memory table of 64 bit fingerprints to tell whether a
+ * url is already there. {@link DataController} adds urls as it records
+ * visits, so answering a WebView only means mapping the file, and the
+ * resulting array is shared between tabs until more urls are added. The
+ * file is only rebuilt from history when the provider reports that history
+ * rows were deleted, e.g. when the user clears history, see
+ * {@link #onHistoryDeleted}.
+ */
+public class VisitedLinkStore {
+
+    private static final String LOGTAG = "VisitedLinkStore";
+
+    private static final String FILE = "visited_links";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String[] URL_PROJECTION = new String[] {
+            History.URL,
+    };
+
+    private static final String VISITED_SELECTION = History.VISITS + " > 0";
+
+    private static VisitedLinkStore sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final File mFile;
+    private final Object mLock = new Object();
+
+    // All of the following are guarded by mLock
+    private boolean mLoaded;
+    // Open addressing set of url fingerprints, 0 marks an empty slot
+    private long[] mFingerprints = new long[1024];
+    private int mCount;
+    private SoftReference<String[]> mUrls;
+    // Urls added since mUrls was built
+    private ArrayList<String> mAdded = new ArrayList<String>();
+
+    private final Runnable mRebuild = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mLoaded) {
+                    rebuild();
+                }
+            }
+        }
+    };
+
+    /* package */ static synchronized VisitedLinkStore getInstance(Context c) {
+        if (sInstance == null) {
+            sInstance = new VisitedLinkStore(c);
+        }
+        return sInstance;
+    }
+
+    private VisitedLinkStore(Context c) {
+        mContext = c.getApplicationContext();
+        mHandler = new Handler(BackgroundHandler.getLooper());
+        mFile = new File(mContext.getFilesDir(), FILE);
+    }
+
+    /**
+     * Called by the provider once a deletion of history rows has been
+     * committed. A loaded store is rebuilt in the background, otherwise
+     * the file is dropped so that the next load rebuilds it.
+     */
+    public static void onHistoryDeleted(Context c) {
+        VisitedLinkStore store;
+        synchronized (VisitedLinkStore.class) {
+            store = sInstance;
+            if (store == null) {
+                new File(c.getFilesDir(), FILE).delete();
+                return;
+            }
+        }
+        store.scheduleRebuild();
+    }
+
+    private void scheduleRebuild() {
+        synchronized (mLock) {
+            if (!mLoaded) {
+                mFile.delete();
+                return;
+            }
+        }
+        mHandler.removeCallbacks(mRebuild);
+        mHandler.post(mRebuild);
+    }
+
+    /**
+     * Returns all visited urls. The array is shared and must not be modified.
+     * Must not be called on the UI thread.
+     */
+    public String[] getUrls() {
+        synchronized (mLock) {
+            ensureLoaded();
+            String[] urls = mUrls != null ? mUrls.get() : null;
+            if (urls == null) {
+                try {
+                    urls = readUrls();
+                } catch (IOException e) {
+                    Log.w(LOGTAG, "Failed to read visited links", e);
+                    return new String[0];
+                }
+            } else if (!mAdded.isEmpty()) {
+                int size = urls.length;
+                urls = Arrays.copyOf(urls, size + mAdded.size());
+                for (int i = 0; i < mAdded.size(); i++) {
+                    urls[size + i] = mAdded.get(i);
+                }
+            } else {
+                return urls;
+            }
+            mAdded.clear();
+            mUrls = new SoftReference<String[]>(urls);
+            return urls;
+        }
+    }
+
+    /**
+     * Called by {@link DataController} after it has recorded visits.
+     */
+    void addUrl(String url) {
+        synchronized (mLock) {
+            ensureLoaded();
+            if (!insertFingerprint(fingerprint(url))) {
+                return;
+            }
+            try {
+                OutputStream out = new FileOutputStream(mFile, true);
+                try {
+                    out.write(encode(url));
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Failed to append visited link", e);
+                // Rebuilt from history on the next load
+                mFile.delete();
+                mLoaded = false;
+                return;
+            }
+            if (mUrls != null) {
+                mAdded.add(url);
+            }
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        // Left over from before a failed append
+        Arrays.fill(mFingerprints, 0);
+        mCount = 0;
+        mUrls = null;
+        mAdded.clear();
+        if (mFile.exists()) {
+            try {
+                String[] urls = readUrls();
+                for (String url : urls) {
+                    insertFingerprint(fingerprint(url));
+                }
+                mUrls = new SoftReference<String[]>(urls);
+                return;
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Failed to read visited links, rebuilding", e);
+            }
+        }
+        rebuild();
+    }
+
+    private void rebuild() {
+        ArrayList<String> urls = new ArrayList<String>();
+        Arrays.fill(mFingerprints, 0);
+        mCount = 0;
+        ContentResolver cr = mContext.getContentResolver();
+        Cursor c = null;
+        try {
+            c = cr.query(History.CONTENT_URI, URL_PROJECTION, VISITED_SELECTION,
+                    null, null);
+            while (c != null && c.moveToNext()) {
+                String url = c.getString(0);
+                if (url != null && insertFingerprint(fingerprint(url))) {
+                    urls.add(url);
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.e(LOGTAG, "rebuild", e);
+        } finally {
+            if (c != null) c.close();
+        }
+        File tmp = new File(mFile.getPath() + TEMP_SUFFIX);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                for (String url : urls) {
+                    out.write(encode(url));
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to write visited links", e);
+            tmp.delete();
+        }
+        mUrls = new SoftReference<String[]>(urls.toArray(new String[urls.size()]));
+        mAdded.clear();
+    }
+
+    private String[] readUrls() throws IOException {
+        FileInputStream in = new FileInputStream(mFile);
+        ByteBuffer buffer;
+        try {
+            FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+        ArrayList<String> urls = new ArrayList<String>(mCount);
+        int limit = buffer.limit();
+        byte[] record = new byte[256];
+        int start = 0;
+        for (int i = 0; i < limit; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            int length = i - start;
+            if (record.length < length) {
+                record = new byte[length * 2];
+            }
+            buffer.position(start);
+            buffer.get(record, 0, length);
+            urls.add(new String(record, 0, length, StandardCharsets.UTF_8));
+            start = i + 1;
+        }
+        // Anything after the last newline is a torn append
+        return urls.toArray(new String[urls.size()]);
+    }
+
+    private static byte[] encode(String url) {
+        return (url + '\n').getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 64 bit FNV-1a of the url's chars. Never returns 0.
+     */
+    static long fingerprint(String url) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Returns false if the fingerprint was already in the set.
+     */
+    private boolean insertFingerprint(long fingerprint) {
+        if (mCount * 2 >= mFingerprints.length) {
+            long[] old = mFingerprints;
+            mFingerprints = new long[old.length * 2];
+            mCount = 0;
+            for (long f : old) {
+                if (f != 0) {
+                    insertFingerprint(f);
+                }
+            }
+        }
+        int mask = mFingerprints.length - 1;
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        while (mFingerprints[slot] != 0) {
+            if (mFingerprints[slot] == fingerprint) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mFingerprints[slot] = fingerprint;
+        mCount++;
+        return true;
+    }
+}
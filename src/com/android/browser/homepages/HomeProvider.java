@@ -28,6 +28,7 @@ import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.webkit.WebResourceResponse;
 
+import com.android.browser.BackgroundHandler;
 import com.android.browser.BrowserSettings;
 
 import java.io.File;
@@ -81,7 +82,8 @@ public class HomeProvider extends ContentProvider {
             ParcelFileDescriptor[] pipes = ParcelFileDescriptor.createPipe();
             final ParcelFileDescriptor write = pipes[1];
             AssetFileDescriptor afd = new AssetFileDescriptor(write, 0, -1);
-            new RequestHandler(getContext(), uri, afd.createOutputStream()).start();
+            BackgroundHandler.execute(
+                    new RequestHandler(getContext(), uri, afd.createOutputStream()));
             return pipes[0];
         } catch (IOException e) {
             Log.e(TAG, "Failed to handle request: " + uri, e);
@@ -112,7 +114,7 @@ public class HomeProvider extends ContentProvider {
             if (listFiles && interceptFile(url)) {
                 PipedInputStream ins = new PipedInputStream();
                 PipedOutputStream outs = new PipedOutputStream(ins);
-                new RequestHandler(context, Uri.parse(url), outs).start();
+                BackgroundHandler.execute(new RequestHandler(context, Uri.parse(url), outs));
                 return new WebResourceResponse("text/html", "utf-8", ins);
             }
         } catch (Exception e) {}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.homepages;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.History;
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+
+import com.android.browser.R;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The rendered most visited page, kept in memory and in the cache
+ * directory so that opening it does not query history while history is
+ * unchanged. BrowserProvider2 calls {@link #onHistoryChanged} once a write
+ * to history, bookmarks or images has committed, which moves the generation
+ * on; a page rendered under an older generation is dropped rather than
+ * kept. The copy on disk
+ * is deleted on the first change, so one found by a new process is
+ * current as long as it was rendered for the same configuration.
+ */
+public class MostVisitedCache {
+
+    private static final String TAG = "MostVisitedCache";
+
+    private static final String FILE_NAME = "most_visited.html";
+
+    private static final int MAX_ROWS = 12;
+
+    private static final int DISK_UNKNOWN = 0;
+    private static final int DISK_CURRENT = 1;
+    private static final int DISK_ABSENT = 2;
+
+    // We can reuse this for both History and Bookmarks queries because the
+    // columns defined actually belong to the CommonColumn and ImageColumn
+    // interfaces that both History and Bookmarks implement
+    private static final String[] PROJECTION = new String[] {
+        History.URL,
+        History.TITLE,
+        History.THUMBNAIL
+    };
+    private static final String SELECTION = History.URL
+            + " NOT LIKE 'content:%' AND " + History.THUMBNAIL + " IS NOT NULL";
+
+    private static final Object sLock = new Object();
+
+    // All below are guarded by sLock
+    private static long sGeneration;
+    private static byte[] sPage;
+    private static long sPageGeneration = -1;
+    private static int sDiskState = DISK_UNKNOWN;
+
+    private MostVisitedCache() {}
+
+    /**
+     * Returns the most visited page, rendering it only if history changed
+     * since it was last rendered. Called off the UI thread.
+     */
+    static byte[] getPage(Context context) throws IOException {
+        long generation;
+        boolean readDisk;
+        synchronized (sLock) {
+            if (sPage != null && sPageGeneration == sGeneration) {
+                return sPage;
+            }
+            generation = sGeneration;
+            readDisk = sDiskState != DISK_ABSENT;
+        }
+        String key = getConfigurationKey(context);
+        if (readDisk) {
+            byte[] page = readPage(context, key);
+            synchronized (sLock) {
+                if (generation == sGeneration) {
+                    if (page != null) {
+                        sPage = page;
+                        sPageGeneration = generation;
+                        sDiskState = DISK_CURRENT;
+                        return page;
+                    }
+                    sDiskState = DISK_ABSENT;
+                }
+            }
+        }
+        byte[] page = render(context);
+        synchronized (sLock) {
+            if (generation != sGeneration) {
+                // Already stale, but still the newest page there is
+                return page;
+            }
+            sPage = page;
+            sPageGeneration = generation;
+        }
+        writePage(context, key, page, generation);
+        return page;
+    }
+
+    /**
+     * Called by the provider after a write transaction that changed history,
+     * bookmarks or images has ended. Pages rendered before this call are not
+     * served again.
+     */
+    public static void onHistoryChanged(Context context) {
+        synchronized (sLock) {
+            sGeneration++;
+            sPage = null;
+            if (sDiskState != DISK_ABSENT) {
+                getFile(context).delete();
+                sDiskState = DISK_ABSENT;
+            }
+        }
+    }
+
+    /**
+     * Drops the page from memory, the copy on disk is kept.
+     */
+    public static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            synchronized (sLock) {
+                sPage = null;
+            }
+        }
+    }
+
+    private static byte[] render(Context context) throws IOException {
+        Template t = Template.getCachedTemplate(context, R.raw.most_visited);
+        Cursor historyResults = context.getContentResolver().query(
+                History.CONTENT_URI, PROJECTION, SELECTION,
+                null, History.VISITS + " DESC LIMIT " + MAX_ROWS);
+        Cursor cursor = historyResults;
+        try {
+            if (cursor.getCount() < MAX_ROWS) {
+                Cursor bookmarkResults = context.getContentResolver().query(
+                        Bookmarks.CONTENT_URI, PROJECTION, SELECTION,
+                        null, Bookmarks.DATE_CREATED + " DESC LIMIT " + MAX_ROWS);
+                cursor = new MergeCursor(new Cursor[] { historyResults, bookmarkResults }) {
+                    @Override
+                    public int getCount() {
+                        return Math.min(MAX_ROWS, super.getCount());
+                    }
+                };
+            }
+            t.assignLoop("most_visited", new Template.CursorListEntityWrapper(cursor) {
+                @Override
+                public void writeValue(OutputStream stream, String key) throws IOException {
+                    Cursor cursor = getCursor();
+                    if (key.equals("url")) {
+                        stream.write(htmlEncode(cursor.getString(0)));
+                    } else if (key.equals("title")) {
+                        stream.write(htmlEncode(cursor.getString(1)));
+                    } else if (key.equals("thumbnail")) {
+                        byte[] thumb = cursor.getBlob(2);
+                        stream.write(("data:" + imageType(thumb) + ";base64,").getBytes());
+                        stream.write(Base64.encode(thumb, Base64.DEFAULT));
+                    }
+                }
+            });
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            t.write(out);
+            return out.toByteArray();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Screenshots are saved as JPEG, ones saved by older versions as PNG.
+     */
+    private static String imageType(byte[] image) {
+        if (image.length >= 2 && (image[0] & 0xff) == 0xff && (image[1] & 0xff) == 0xd8) {
+            return "image/jpeg";
+        }
+        return "image/png";
+    }
+
+    private static byte[] htmlEncode(String s) {
+        return TextUtils.htmlEncode(s).getBytes();
+    }
+
+    /**
+     * The template's strings and dimensions depend on the configuration,
+     * and the template itself on the installed package.
+     */
+    private static String getConfigurationKey(Context context) {
+        Configuration config = context.getResources().getConfiguration();
+        long installed = new File(context.getApplicationInfo().sourceDir).lastModified();
+        return config.locale + "/" + config.densityDpi + "/"
+                + config.smallestScreenWidthDp + "/" + installed;
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    private static byte[] readPage(Context context, String key) {
+        File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (!key.equals(in.readUTF())) {
+                return null;
+            }
+            byte[] page = new byte[in.readInt()];
+            in.readFully(page);
+            return page;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Already read
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes to a temporary file and only moves it in place if history
+     * did not change while it was written.
+     */
+    private static void writePage(Context context, String key, byte[] page,
+            long generation) {
+        File file = getFile(context);
+        File temp = null;
+        DataOutputStream out = null;
+        try {
+            temp = File.createTempFile(FILE_NAME, ".tmp", context.getCacheDir());
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeUTF(key);
+            out.writeInt(page.length);
+            out.write(page);
+            out.close();
+            out = null;
+            synchronized (sLock) {
+                if (generation == sGeneration && temp.renameTo(file)) {
+                    sDiskState = DISK_CURRENT;
+                    temp = null;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Already failed
+                }
+            }
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+}
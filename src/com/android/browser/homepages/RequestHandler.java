@@ -19,13 +19,7 @@ package com.android.browser.homepages;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.content.res.Resources;
-import android.database.Cursor;
-import android.database.MergeCursor;
 import android.net.Uri;
-import android.provider.BrowserContract.Bookmarks;
-import android.provider.BrowserContract.History;
-import android.text.TextUtils;
-import android.util.Base64;
 import android.util.Log;
 
 import com.android.browser.R;
@@ -42,7 +36,7 @@ import java.util.Comparator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class RequestHandler extends Thread {
+public class RequestHandler implements Runnable {
 
     private static final String TAG = "RequestHandler";
     private static final int INDEX = 1;
@@ -66,7 +60,6 @@ public class RequestHandler extends Thread {
 
     @Override
     public void run() {
-        super.run();
         try {
             doHandleRequest();
         } catch (Exception e) {
@@ -92,57 +85,8 @@ public class RequestHandler extends Thread {
         }
     }
 
-    byte[] htmlEncode(String s) {
-        return TextUtils.htmlEncode(s).getBytes();
-    }
-
-    // We can reuse this for both History and Bookmarks queries because the
-    // columns defined actually belong to the CommonColumn and ImageColumn
-    // interfaces that both History and Bookmarks implement
-    private static final String[] PROJECTION = new String[] {
-        History.URL,
-        History.TITLE,
-        History.THUMBNAIL
-    };
-    private static final String SELECTION = History.URL
-            + " NOT LIKE 'content:%' AND " + History.THUMBNAIL + " IS NOT NULL";
     void writeTemplatedIndex() throws IOException {
-        Template t = Template.getCachedTemplate(mContext, R.raw.most_visited);
-        Cursor historyResults = mContext.getContentResolver().query(
-                History.CONTENT_URI, PROJECTION, SELECTION,
-                null, History.VISITS + " DESC LIMIT 12");
-        Cursor cursor = historyResults;
-        try {
-            if (cursor.getCount() < 12) {
-                Cursor bookmarkResults = mContext.getContentResolver().query(
-                        Bookmarks.CONTENT_URI, PROJECTION, SELECTION,
-                        null, Bookmarks.DATE_CREATED + " DESC LIMIT 12");
-                cursor = new MergeCursor(new Cursor[] { historyResults, bookmarkResults }) {
-                    @Override
-                    public int getCount() {
-                        return Math.min(12, super.getCount());
-                    }
-                };
-            }
-            t.assignLoop("most_visited", new Template.CursorListEntityWrapper(cursor) {
-                @Override
-                public void writeValue(OutputStream stream, String key) throws IOException {
-                    Cursor cursor = getCursor();
-                    if (key.equals("url")) {
-                        stream.write(htmlEncode(cursor.getString(0)));
-                    } else if (key.equals("title")) {
-                        stream.write(htmlEncode(cursor.getString(1)));
-                    } else if (key.equals("thumbnail")) {
-                        stream.write("data:image/png;base64,".getBytes());
-                        byte[] thumb = cursor.getBlob(2);
-                        stream.write(Base64.encode(thumb, Base64.DEFAULT));
-                    }
-                }
-            });
-            t.write(mOutput);
-        } finally {
-            cursor.close();
-        }
+        mOutput.write(MostVisitedCache.getPage(mContext));
     }
 
     private static final Comparator<File> sFileComparator = new Comparator<File>() {
@@ -16,12 +16,13 @@
  */
 package com.android.browser.homepages;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,8 +33,16 @@ import android.util.TypedValue;
 
 import com.android.browser.R;
 
+/**
+ * A template is compiled once, when first used, into a flat program of
+ * pre-encoded literals, values and loops, see {@link Program}. Rendering
+ * runs the program into a buffer that is written out in one go.
+ */
 public class Template {
 
+    private static final Pattern TAG_PATTERN = Pattern.compile("<%([=\\{\\}])\\s*(\\w+)\\s*%>");
+    private static final Pattern CONST_PATTERN = Pattern.compile("<%@\\s*(\\w+/\\w+)\\s*%>");
+
     private static HashMap<Integer, Template> sCachedTemplates = new HashMap<Integer, Template>();
 
     public static Template getCachedTemplate(Context context, int id) {
@@ -48,10 +57,6 @@ public class Template {
         }
     }
 
-    interface Entity {
-        void write(OutputStream stream, EntityData params) throws IOException;
-    }
-
     interface EntityData {
         void writeValue(OutputStream stream, String key) throws IOException;
         ListEntityIterator getListIterator(String key);
@@ -62,57 +67,6 @@ public class Template {
         boolean moveToNext();
     }
 
-    static class StringEntity implements Entity {
-
-        byte[] mValue;
-
-        public StringEntity(String value) {
-            mValue = value.getBytes();
-        }
-
-        @Override
-        public void write(OutputStream stream, EntityData params) throws IOException {
-            stream.write(mValue);
-        }
-
-    }
-
-    static class SimpleEntity implements Entity {
-
-        String mKey;
-
-        public SimpleEntity(String key) {
-            mKey = key;
-        }
-
-        @Override
-        public void write(OutputStream stream, EntityData params) throws IOException {
-            params.writeValue(stream, mKey);
-        }
-
-    }
-
-    static class ListEntity implements Entity {
-
-        String mKey;
-        Template mSubTemplate;
-
-        public ListEntity(Context context, String key, String subTemplate) {
-            mKey = key;
-            mSubTemplate = new Template(context, subTemplate);
-        }
-
-        @Override
-        public void write(OutputStream stream, EntityData params) throws IOException {
-            ListEntityIterator iter = params.getListIterator(mKey);
-            iter.reset();
-            while (iter.moveToNext()) {
-                mSubTemplate.write(stream, iter);
-            }
-        }
-
-    }
-
     public abstract static class CursorListEntityWrapper implements ListEntityIterator {
 
         private Cursor mCursor;
@@ -142,102 +96,223 @@ public class Template {
 
     }
 
-    static class HashMapEntityData implements EntityData {
-
-        HashMap<String, Object> mData;
-
-        public HashMapEntityData(HashMap<String, Object> map) {
-            mData = map;
+    /**
+     * A compiled template. Each instruction is three ints: an opcode, an
+     * operand and, for loops, the index just past the loop body.
+     */
+    static class Program {
+        static final int OP_LITERAL = 0; // operand indexes mLiterals
+        static final int OP_VALUE = 1;   // operand indexes mSlots
+        static final int OP_LOOP = 2;    // operand indexes mSlots
+        static final int INSTRUCTION_SIZE = 3;
+
+        int[] mCode = new int[16 * INSTRUCTION_SIZE];
+        int mLength;
+        final ArrayList<byte[]> mLiteralList = new ArrayList<byte[]>();
+        byte[][] mLiterals;
+        String[] mSlots;
+        final HashMap<String, Integer> mSlotIndex = new HashMap<String, Integer>();
+        // Size of the last render, so the buffer rarely grows
+        volatile int mSizeHint = 1024;
+
+        void emit(int op, int operand) {
+            if (mLength + INSTRUCTION_SIZE > mCode.length) {
+                int[] code = new int[mCode.length * 2];
+                System.arraycopy(mCode, 0, code, 0, mLength);
+                mCode = code;
+            }
+            mCode[mLength++] = op;
+            mCode[mLength++] = operand;
+            // Set once the end of a loop is reached
+            mCode[mLength++] = 0;
         }
 
-        @Override
-        public ListEntityIterator getListIterator(String key) {
-            return (ListEntityIterator) mData.get(key);
+        void emitLiteral(String literal) {
+            if (literal.length() > 0) {
+                mLiteralList.add(literal.getBytes(StandardCharsets.UTF_8));
+                emit(OP_LITERAL, mLiteralList.size() - 1);
+            }
         }
 
-        @Override
-        public void writeValue(OutputStream stream, String key) throws IOException {
-            stream.write((byte[]) mData.get(key));
+        int slot(String name) {
+            Integer slot = mSlotIndex.get(name);
+            if (slot == null) {
+                slot = mSlotIndex.size();
+                mSlotIndex.put(name, slot);
+            }
+            return slot;
         }
 
+        void finish() {
+            mLiterals = mLiteralList.toArray(new byte[mLiteralList.size()][]);
+            mLiteralList.clear();
+            mSlots = new String[mSlotIndex.size()];
+            for (String name : mSlotIndex.keySet()) {
+                mSlots[mSlotIndex.get(name)] = name;
+            }
+        }
     }
 
-    private List<Entity> mTemplate;
-    private HashMap<String, Object> mData = new HashMap<String, Object>();
-    private Template(Context context, int tid) {
-        this(context, readRaw(context, tid));
-    }
+    private final Program mProgram;
+    private final Object[] mValues;
 
-    private Template(Context context, String template) {
-        mTemplate = new ArrayList<Entity>();
-        template = replaceConsts(context, template);
-        parseTemplate(context, template);
+    private Template(Context context, int tid) {
+        this(compile(loadText(context, tid)));
     }
 
-    private Template(Template copy) {
-        mTemplate = copy.mTemplate;
+    private Template(Program program) {
+        mProgram = program;
+        mValues = new Object[program.mSlots.length];
     }
 
     Template copy() {
-        return new Template(this);
+        return new Template(mProgram);
     }
 
-    void parseTemplate(Context context, String template) {
-        final Pattern pattern = Pattern.compile("<%([=\\{])\\s*(\\w+)\\s*%>");
-        Matcher m = pattern.matcher(template);
+    /**
+     * Compiles template text whose constants are already replaced.
+     * Loops end at the first closing tag of the same name, an opening tag
+     * without one is dropped and a closing tag without an opening one is
+     * kept as text.
+     */
+    private static Program compile(String template) {
+        Program program = new Program();
+        Matcher m = TAG_PATTERN.matcher(template);
+        Matcher close = TAG_PATTERN.matcher(template);
+        // Open loops, as the start of their closing tag and their index
+        int[] closes = new int[8];
+        int[] loops = new int[8];
+        int depth = 0;
         int start = 0;
         while (m.find()) {
-            String static_part = template.substring(start, m.start());
-            if (static_part.length() > 0) {
-                mTemplate.add(new StringEntity(static_part));
-            }
             String type = m.group(1);
             String name = m.group(2);
+            if (depth > 0 && m.start() == closes[depth - 1]) {
+                program.emitLiteral(template.substring(start, m.start()));
+                depth--;
+                program.mCode[loops[depth] + 2] = program.mLength;
+                start = m.end();
+                continue;
+            }
+            if (type.equals("}")) {
+                // Not closing anything, stays text
+                continue;
+            }
+            program.emitLiteral(template.substring(start, m.start()));
+            start = m.end();
             if (type.equals("=")) {
-                mTemplate.add(new SimpleEntity(name));
-            } else if (type.equals("{")) {
-                Pattern p = Pattern.compile("<%\\}\\s*" + Pattern.quote(name) + "\\s*%>");
-                Matcher end_m = p.matcher(template);
-                if (end_m.find(m.end())) {
-                    start = m.end();
-                    m.region(end_m.end(), template.length());
-                    String subTemplate = template.substring(start, end_m.start());
-                    mTemplate.add(new ListEntity(context, name, subTemplate));
-                    start = end_m.end();
+                program.emit(Program.OP_VALUE, program.slot(name));
+            } else {
+                int end = findClose(close, name, m.end(),
+                        depth > 0 ? closes[depth - 1] : template.length());
+                if (end < 0) {
                     continue;
                 }
+                if (depth == closes.length) {
+                    closes = grow(closes);
+                    loops = grow(loops);
+                }
+                closes[depth] = end;
+                loops[depth] = program.mLength;
+                depth++;
+                program.emit(Program.OP_LOOP, program.slot(name));
             }
-            start = m.end();
         }
-        String static_part = template.substring(start, template.length());
-        if (static_part.length() > 0) {
-            mTemplate.add(new StringEntity(static_part));
+        program.emitLiteral(template.substring(start, template.length()));
+        program.finish();
+        return program;
+    }
+
+    private static int findClose(Matcher close, String name, int from, int limit) {
+        close.region(from, limit);
+        while (close.find()) {
+            if (close.group(1).equals("}") && close.group(2).equals(name)) {
+                return close.start();
+            }
         }
+        return -1;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
     }
 
     public void assign(String name, String value) {
-        mData.put(name, value.getBytes());
+        Integer slot = mProgram.mSlotIndex.get(name);
+        if (slot != null) {
+            mValues[slot] = value.getBytes();
+        }
     }
 
     public void assignLoop(String name, ListEntityIterator iter) {
-        mData.put(name, iter);
+        Integer slot = mProgram.mSlotIndex.get(name);
+        if (slot != null) {
+            mValues[slot] = iter;
+        }
     }
 
     public void write(OutputStream stream) throws IOException {
-        write(stream, new HashMapEntityData(mData));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(mProgram.mSizeHint);
+        run(buffer, 0, mProgram.mLength, null);
+        mProgram.mSizeHint = buffer.size();
+        buffer.writeTo(stream);
     }
 
-    public void write(OutputStream stream, EntityData data) throws IOException {
-        for (Entity ent : mTemplate) {
-            ent.write(stream, data);
+    /**
+     * Runs the instructions in [pc, end). Values come from data when in a
+     * loop, from what was assigned otherwise.
+     */
+    private void run(OutputStream out, int pc, int end, EntityData data) throws IOException {
+        final int[] code = mProgram.mCode;
+        final byte[][] literals = mProgram.mLiterals;
+        final String[] slots = mProgram.mSlots;
+        while (pc < end) {
+            int operand = code[pc + 1];
+            switch (code[pc]) {
+            case Program.OP_LITERAL:
+                out.write(literals[operand]);
+                break;
+            case Program.OP_VALUE:
+                if (data != null) {
+                    data.writeValue(out, slots[operand]);
+                } else if (mValues[operand] instanceof byte[]) {
+                    out.write((byte[]) mValues[operand]);
+                }
+                break;
+            case Program.OP_LOOP: {
+                ListEntityIterator iter = data != null
+                        ? data.getListIterator(slots[operand])
+                        : (mValues[operand] instanceof ListEntityIterator
+                                ? (ListEntityIterator) mValues[operand] : null);
+                int bodyEnd = code[pc + 2];
+                if (iter != null) {
+                    iter.reset();
+                    while (iter.moveToNext()) {
+                        run(out, pc + Program.INSTRUCTION_SIZE, bodyEnd, iter);
+                    }
+                }
+                pc = bodyEnd;
+                continue;
+            }
+            }
+            pc += Program.INSTRUCTION_SIZE;
         }
     }
 
+    /**
+     * Returns the text of a template resource with its constants replaced,
+     * what {@link #compile} takes.
+     */
+    private static String loadText(Context context, int id) {
+        return replaceConsts(context, readRaw(context, id));
+    }
+
     private static String replaceConsts(Context context, String template) {
-        final Pattern pattern = Pattern.compile("<%@\\s*(\\w+/\\w+)\\s*%>");
         final Resources res = context.getResources();
         final String packageName = R.class.getPackage().getName();
-        Matcher m = pattern.matcher(template);
+        Matcher m = CONST_PATTERN.matcher(template);
         StringBuffer sb = new StringBuffer();
         while (m.find()) {
             String name = m.group(1);
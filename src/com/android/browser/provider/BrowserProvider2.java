@@ -36,6 +36,10 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.provider.BaseColumns;
 import android.provider.Browser;
 import android.provider.Browser.BookmarkColumns;
@@ -52,24 +56,31 @@ import android.provider.BrowserContract.SyncState;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.SyncStateContract;
 import android.text.TextUtils;
+import android.util.Log;
 
 import com.android.browser.R;
 import com.android.browser.UrlUtils;
+import com.android.browser.VisitedLinkStore;
+import com.android.browser.homepages.MostVisitedCache;
 import com.android.browser.widget.BookmarkThumbnailWidgetProvider;
 import com.android.common.content.SyncStateContentProviderHelper;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
 public class BrowserProvider2 extends SQLiteContentProvider {
 
+    private static final String TAG = "BrowserProvider2";
+
     public static final String PARAM_GROUP_BY = "groupBy";
     public static final String PARAM_ALLOW_EMPTY_ACCOUNTS = "allowEmptyAccounts";
 
@@ -82,6 +93,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 BrowserContract.AUTHORITY_URI, "thumbnails");
         public static final String _ID = "_id";
         public static final String THUMBNAIL = "thumbnail";
+        /**
+         * Query parameter for deletes on {@link #CONTENT_URI}: a comma
+         * separated list of ids whose thumbnails should be kept.
+         */
+        public static final String QUERY_PARAMETER_KEEP = "keep";
     }
 
     public static interface OmniboxSuggestions {
@@ -91,21 +107,87 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         public static final String URL = "url";
         public static final String TITLE = "title";
         public static final String IS_BOOKMARK = "bookmark";
+        /**
+         * Query parameter holding the text typed so far. When present the
+         * suggestions are answered from the full text index instead of
+         * the caller's selection.
+         */
+        public static final String QUERY_PARAMETER_FILTER = "filter";
+    }
+
+    /**
+     * Extra columns of bookmarks, history, combined and images queries.
+     * Each image is stored once per distinct content, these name the
+     * content so that readers can share decoded bitmaps between urls.
+     */
+    public static interface ImageHashes {
+        public static final String FAVICON_HASH = "favicon_hash";
+        public static final String THUMBNAIL_HASH = "thumbnail_hash";
+        public static final String TOUCH_ICON_HASH = "touch_icon_hash";
+    }
+
+    /**
+     * Runs a slice of database maintenance through {@link #call}, see
+     * {@link MaintenanceJobService}. Needs the write permission.
+     */
+    public static interface Maintenance {
+        public static final String METHOD_RUN = "runMaintenance";
+        /** Long extra, the time budget of the slice in milliseconds. */
+        public static final String EXTRA_BUDGET = "budget";
+        /** Boolean result, true once a whole pass has run. */
+        public static final String RESULT_DONE = "done";
+    }
+
+    /**
+     * Records visits and titles through {@link #call} in one transaction,
+     * incrementing the visit counts in place and inserting rows for new
+     * urls. The extras are parallel arrays, one entry per url. Needs the
+     * write permission.
+     */
+    public static interface Visits {
+        public static final String METHOD_RECORD = "recordVisits";
+        /** String array extra, the urls. */
+        public static final String EXTRA_URLS = "urls";
+        /** Int array extra, the visits to add, 0 to only set the title. */
+        public static final String EXTRA_VISITS = "visits";
+        /** Long array extra, the time of the last visit. */
+        public static final String EXTRA_DATES = "dates";
+        /** String array extra, the title or null to keep the current one. */
+        public static final String EXTRA_TITLES = "titles";
+        /**
+         * Long array result, the history row of each url, or -1 for a title
+         * of a url that isn't in history.
+         */
+        public static final String RESULT_IDS = "ids";
     }
 
     static final String TABLE_BOOKMARKS = "bookmarks";
     static final String TABLE_HISTORY = "history";
     static final String TABLE_IMAGES = "images";
+    static final String TABLE_IMAGE_DATA = "image_data";
+    // Number of bookmarks and history rows using a url's images
+    static final String IMAGES_REFS = "refs";
     static final String TABLE_SEARCHES = "searches";
     static final String TABLE_SYNC_STATE = "syncstate";
     static final String TABLE_SETTINGS = "settings";
     static final String TABLE_SNAPSHOTS = "snapshots";
     static final String TABLE_THUMBNAILS = "thumbnails";
-
+    static final String TABLE_SUGGESTIONS_FTS = "suggestions_fts";
+
+    // images only holds hashes, the blobs are joined in from image_data
+    static final String JOIN_IMAGE_DATA =
+            " LEFT OUTER JOIN image_data favicons " +
+            "ON favicons.hash = images." + ImageHashes.FAVICON_HASH +
+            " LEFT OUTER JOIN image_data thumbnails " +
+            "ON thumbnails.hash = images." + ImageHashes.THUMBNAIL_HASH +
+            " LEFT OUTER JOIN image_data touch_icons " +
+            "ON touch_icons.hash = images." + ImageHashes.TOUCH_ICON_HASH;
+
+    static final String TABLE_IMAGES_JOIN_IMAGE_DATA = "images" + JOIN_IMAGE_DATA;
     static final String TABLE_BOOKMARKS_JOIN_IMAGES = "bookmarks LEFT OUTER JOIN images " +
-            "ON bookmarks.url = images." + Images.URL;
+            "ON bookmarks.url = images." + Images.URL + JOIN_IMAGE_DATA;
     static final String TABLE_HISTORY_JOIN_IMAGES = "history LEFT OUTER JOIN images " +
-            "ON history.url = images." + Images.URL;
+            "ON history.url = images." + Images.URL + JOIN_IMAGE_DATA;
 
     static final String VIEW_ACCOUNTS = "v_accounts";
     static final String VIEW_SNAPSHOTS_COMBINED = "v_snapshots_combined";
@@ -114,7 +196,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final String FORMAT_COMBINED_JOIN_SUBQUERY_JOIN_IMAGES =
             "history LEFT OUTER JOIN (%s) bookmarks " +
             "ON history.url = bookmarks.url LEFT OUTER JOIN images " +
-            "ON history.url = images.url_key";
+            "ON history.url = images.url_key" + JOIN_IMAGE_DATA;
+
+    // The columns of the images table and the image each one names
+    static final String[] IMAGE_COLUMNS = new String[] {
+            Images.FAVICON, Images.THUMBNAIL, Images.TOUCH_ICON,
+    };
+    static final String[] IMAGE_HASH_COLUMNS = new String[] {
+            ImageHashes.FAVICON_HASH, ImageHashes.THUMBNAIL_HASH, ImageHashes.TOUCH_ICON_HASH,
+    };
 
     static final String DEFAULT_SORT_HISTORY = History.DATE_LAST_VISITED + " DESC";
     static final String DEFAULT_SORT_ACCOUNTS =
@@ -137,13 +227,26 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             "history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ?"
             + " OR history.title LIKE ? OR bookmarks.title LIKE ?";
 
+    // History rows matching themselves, or through the title of their
+    // bookmark. Takes the match expression once.
+    private static final String FTS_SUGGEST_SELECTION =
+            "history._id IN (SELECT docid FROM suggestions_fts"
+            + " WHERE suggestions_fts MATCH ?1 AND docid > 0)"
+            + " OR bookmarks._id IN (SELECT -docid FROM suggestions_fts"
+            + " WHERE suggestions_fts MATCH ?1 AND docid < 0)";
+
+    private static final String DEFAULT_SORT_OMNIBOX_SUGGESTIONS =
+            "bookmark DESC, visits DESC, date DESC";
+
     private static final String ZERO_QUERY_SUGGEST_SELECTION =
             TABLE_HISTORY + "." + History.DATE_LAST_VISITED + " != 0";
 
-    private static final String IMAGE_PRUNE =
-            "url_key NOT IN (SELECT url FROM bookmarks " +
-            "WHERE url IS NOT NULL AND deleted == 0) AND url_key NOT IN " +
-            "(SELECT url FROM history WHERE url IS NOT NULL)";
+    // Orphaned images, see SQL_CREATE_IMAGE_REFS. Takes the batch size.
+    private static final String IMAGE_RECLAIM =
+            "rowid IN (SELECT rowid FROM images WHERE refs <= 0 LIMIT ?)";
+
+    private static final String PERMISSION_WRITE =
+            "com.android.browser.permission.WRITE_HISTORY_BOOKMARKS";
 
     static final int THUMBNAILS = 10;
     static final int THUMBNAILS_ID = 11;
@@ -255,9 +358,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Bookmarks._ID, qualifyColumn(TABLE_BOOKMARKS, Bookmarks._ID));
         map.put(Bookmarks.TITLE, Bookmarks.TITLE);
         map.put(Bookmarks.URL, Bookmarks.URL);
-        map.put(Bookmarks.FAVICON, Bookmarks.FAVICON);
-        map.put(Bookmarks.THUMBNAIL, Bookmarks.THUMBNAIL);
-        map.put(Bookmarks.TOUCH_ICON, Bookmarks.TOUCH_ICON);
+        putImageColumns(map);
         map.put(Bookmarks.IS_FOLDER, Bookmarks.IS_FOLDER);
         map.put(Bookmarks.PARENT, Bookmarks.PARENT);
         map.put(Bookmarks.POSITION, Bookmarks.POSITION);
@@ -305,13 +406,14 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(History._ID, qualifyColumn(TABLE_HISTORY, History._ID));
         map.put(History.TITLE, History.TITLE);
         map.put(History.URL, History.URL);
-        map.put(History.FAVICON, History.FAVICON);
-        map.put(History.THUMBNAIL, History.THUMBNAIL);
-        map.put(History.TOUCH_ICON, History.TOUCH_ICON);
+        putImageColumns(map);
         map.put(History.DATE_CREATED, History.DATE_CREATED);
         map.put(History.DATE_LAST_VISITED, History.DATE_LAST_VISITED);
         map.put(History.VISITS, History.VISITS);
         map.put(History.USER_ENTERED, History.USER_ENTERED);
+        map.put(Combined.IS_BOOKMARK, "EXISTS (SELECT 1 FROM bookmarks "
+                + "WHERE bookmarks.url = history.url AND bookmarks.deleted = 0) AS "
+                + Combined.IS_BOOKMARK);
 
         // Sync state
         map = SYNC_STATE_PROJECTION_MAP;
@@ -323,9 +425,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         // Images
         map = IMAGES_PROJECTION_MAP;
         map.put(Images.URL, Images.URL);
-        map.put(Images.FAVICON, Images.FAVICON);
-        map.put(Images.THUMBNAIL, Images.THUMBNAIL);
-        map.put(Images.TOUCH_ICON, Images.TOUCH_ICON);
+        putImageColumns(map);
 
         // Combined history half
         map = COMBINED_HISTORY_PROJECTION_MAP;
@@ -338,9 +438,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 TABLE_BOOKMARKS + "." + Bookmarks._ID +
                 " IS NOT NULL THEN 1 ELSE 0 END AS " + Combined.IS_BOOKMARK);
         map.put(Combined.VISITS, Combined.VISITS);
-        map.put(Combined.FAVICON, Combined.FAVICON);
-        map.put(Combined.THUMBNAIL, Combined.THUMBNAIL);
-        map.put(Combined.TOUCH_ICON, Combined.TOUCH_ICON);
+        putImageColumns(map);
         map.put(Combined.USER_ENTERED, "NULL AS " + Combined.USER_ENTERED);
 
         // Combined bookmark half
@@ -352,9 +450,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Combined.DATE_LAST_VISITED, "NULL AS " + Combined.DATE_LAST_VISITED);
         map.put(Combined.IS_BOOKMARK, "1 AS " + Combined.IS_BOOKMARK);
         map.put(Combined.VISITS, "0 AS " + Combined.VISITS);
-        map.put(Combined.FAVICON, Combined.FAVICON);
-        map.put(Combined.THUMBNAIL, Combined.THUMBNAIL);
-        map.put(Combined.TOUCH_ICON, Combined.TOUCH_ICON);
+        putImageColumns(map);
         map.put(Combined.USER_ENTERED, "NULL AS " + Combined.USER_ENTERED);
 
         // Searches
@@ -369,6 +465,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Settings.VALUE, Settings.VALUE);
     }
 
+    static final void putImageColumns(HashMap<String, String> map) {
+        map.put(Images.FAVICON, "favicons.data AS " + Images.FAVICON);
+        map.put(Images.THUMBNAIL, "thumbnails.data AS " + Images.THUMBNAIL);
+        map.put(Images.TOUCH_ICON, "touch_icons.data AS " + Images.TOUCH_ICON);
+        for (String column : IMAGE_HASH_COLUMNS) {
+            map.put(column, column);
+        }
+    }
+
     static final String bookmarkOrHistoryColumn(String column) {
         return "CASE WHEN bookmarks." + column + " IS NOT NULL THEN " +
                 "bookmarks." + column + " ELSE history." + column + " END AS " + column;
@@ -389,16 +494,31 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     // This is so provider tests can intercept widget updating
     ContentObserver mWidgetObserver = null;
     boolean mUpdateWidgets = false;
+    // Set by deletes of history rows, on the thread that will end the
+    // transaction
+    final ThreadLocal<Boolean> mHistoryDeleted = new ThreadLocal<Boolean>();
+    // Set when a change to what the most visited page shows is posted, on
+    // the thread that will end the transaction
+    final ThreadLocal<Boolean> mHomepageChanged = new ThreadLocal<Boolean>();
     boolean mSyncToNetwork = true;
+    ThumbnailStore mThumbnailStore;
+    DatabaseMaintenance mMaintenance;
 
     final class DatabaseHelper extends SQLiteOpenHelper {
         static final String DATABASE_NAME = "browser2.db";
-        static final int DATABASE_VERSION = 32;
+        static final int DATABASE_VERSION = 37;
         public DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             setWriteAheadLoggingEnabled(true);
         }
 
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // Only takes effect on new databases, older ones are switched
+            // over by DatabaseMaintenance
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        }
+
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE " + TABLE_BOOKMARKS + "(" +
@@ -424,8 +544,6 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     Bookmarks.SYNC5 + " TEXT" +
                     ");");
 
-            // TODO indices
-
             db.execSQL("CREATE TABLE " + TABLE_HISTORY + "(" +
                     History._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                     History.TITLE + " TEXT," +
@@ -436,14 +554,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     History.USER_ENTERED + " INTEGER" +
                     ");");
 
-            db.execSQL("CREATE TABLE " + TABLE_IMAGES + " (" +
-                    Images.URL + " TEXT UNIQUE NOT NULL," +
-                    Images.FAVICON + " BLOB," +
-                    Images.THUMBNAIL + " BLOB," +
-                    Images.TOUCH_ICON + " BLOB" +
-                    ");");
-            db.execSQL("CREATE INDEX imagesUrlIndex ON " + TABLE_IMAGES +
-                    "(" + Images.URL + ")");
+            createImages(db);
 
             db.execSQL("CREATE TABLE " + TABLE_SEARCHES + " (" +
                     Searches._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -457,7 +568,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     ");");
 
             createAccountsView(db);
-            createThumbnails(db);
+            createIndices(db);
+            createSuggestionsIndex(db);
 
             mSyncHelper.createDatabase(db);
 
@@ -469,15 +581,148 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             createOmniboxSuggestions(db);
         }
 
+        /**
+         * Creates the images table, which maps urls to the hashes of their
+         * images, and image_data, which holds each distinct image once.
+         */
+        void createImages(SQLiteDatabase db) {
+            for (String sql : SQL_CREATE_IMAGES) {
+                db.execSQL(sql);
+            }
+            for (String sql : SQL_CREATE_IMAGE_REFS) {
+                db.execSQL(sql);
+            }
+        }
+
+        /**
+         * Adds the reference counts that replaced pruning images with an
+         * anti-join against bookmarks and history.
+         */
+        void addImageRefs(SQLiteDatabase db) {
+            if (!hasColumn(db, TABLE_IMAGES, ImageHashes.FAVICON_HASH)
+                    || hasColumn(db, TABLE_IMAGES, IMAGES_REFS)) {
+                // Created by migrateImages along with everything else
+                return;
+            }
+            db.execSQL("ALTER TABLE " + TABLE_IMAGES + " ADD COLUMN "
+                    + IMAGES_REFS + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("UPDATE " + TABLE_IMAGES + " SET " + IMAGES_REFS + " = "
+                    + SQL_COUNT_IMAGE_REFS.replace("?", "url_key"));
+            for (String sql : SQL_CREATE_IMAGE_REFS) {
+                db.execSQL(sql);
+            }
+        }
+
+        /**
+         * Moves the images that used to be stored as blobs per url over to
+         * image_data, keyed by their hash.
+         */
+        void migrateImages(SQLiteDatabase db) {
+            if (!hasColumn(db, TABLE_IMAGES, Images.FAVICON)) {
+                return;
+            }
+            db.execSQL("DROP INDEX IF EXISTS imagesUrlIndex");
+            db.execSQL("ALTER TABLE " + TABLE_IMAGES + " RENAME TO images_old");
+            createImages(db);
+            Cursor c = db.query("images_old", new String[] {
+                    Images.URL, Images.FAVICON, Images.THUMBNAIL, Images.TOUCH_ICON },
+                    null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    ContentValues values = new ContentValues();
+                    for (int i = 0; i < IMAGE_COLUMNS.length; i++) {
+                        values.put(IMAGE_COLUMNS[i], c.getBlob(i + 1));
+                    }
+                    writeImages(db, c.getString(0), values);
+                }
+            } finally {
+                c.close();
+            }
+            db.execSQL("DROP TABLE images_old");
+        }
+
+        boolean hasColumn(SQLiteDatabase db, String table, String column) {
+            Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            try {
+                int name = c.getColumnIndexOrThrow("name");
+                while (c.moveToNext()) {
+                    if (column.equals(c.getString(name))) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                c.close();
+            }
+        }
+
         void createOmniboxSuggestions(SQLiteDatabase db) {
             db.execSQL(SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS);
         }
 
-        void createThumbnails(SQLiteDatabase db) {
-            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_THUMBNAILS + " (" +
-                    Thumbnails._ID + " INTEGER PRIMARY KEY," +
-                    Thumbnails.THUMBNAIL + " BLOB NOT NULL" +
-                    ");");
+        /**
+         * Creates the indices backing the per-navigation lookups (visited
+         * history by url, bookmark status by url, folder listings by parent
+         * and the date sorted history page). Each index is created on its
+         * own so an upgrade over a large history can be done one table scan
+         * at a time.
+         */
+        void createIndices(SQLiteDatabase db) {
+            for (String sql : SQL_CREATE_INDICES) {
+                db.execSQL(sql);
+            }
+        }
+
+        /**
+         * Creates the full text index used for omnibox and search
+         * suggestions, along with the triggers that keep it in sync with
+         * history and bookmarks, and fills it from the existing rows.
+         */
+        void createSuggestionsIndex(SQLiteDatabase db) {
+            for (String sql : SQL_CREATE_SUGGESTIONS_FTS) {
+                db.execSQL(sql);
+            }
+            db.execSQL("INSERT INTO " + TABLE_SUGGESTIONS_FTS
+                    + "(docid, url, title) SELECT _id, url, title FROM history");
+            db.execSQL("INSERT INTO " + TABLE_SUGGESTIONS_FTS
+                    + "(docid, url, title) SELECT -_id, url, title FROM bookmarks"
+                    + " WHERE deleted = 0 AND folder = 0");
+            db.execSQL("INSERT INTO " + TABLE_SUGGESTIONS_FTS + "("
+                    + TABLE_SUGGESTIONS_FTS + ") VALUES('optimize')");
+        }
+
+        /**
+         * Moves the tab thumbnails that used to be stored as blobs in
+         * browser2.db over to the {@link ThumbnailStore}.
+         */
+        void migrateThumbnails(SQLiteDatabase db) {
+            Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table'"
+                    + " AND name = ?", new String[] { TABLE_THUMBNAILS });
+            boolean exists;
+            try {
+                exists = c.moveToFirst();
+            } finally {
+                c.close();
+            }
+            if (!exists) {
+                return;
+            }
+            c = db.query(TABLE_THUMBNAILS, new String[] {
+                    Thumbnails._ID, Thumbnails.THUMBNAIL }, null, null, null, null, null);
+            try {
+                ThumbnailStore store = getThumbnailStore();
+                while (c.moveToNext()) {
+                    try {
+                        store.write(c.getLong(0), c.getBlob(1));
+                    } catch (IOException e) {
+                        // Only a cache, the tab will be captured again
+                        Log.w(TAG, "Failed to migrate thumbnail " + c.getLong(0), e);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            db.execSQL("DROP TABLE " + TABLE_THUMBNAILS);
         }
 
         void enableSync(SQLiteDatabase db) {
@@ -539,10 +784,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                             values.put(Bookmarks.POSITION, 0);
                             values.put(Bookmarks.PARENT, FIXED_ID_ROOT);
                             ContentValues imageValues = new ContentValues();
-                            imageValues.put(Images.URL, url);
                             imageValues.put(Images.FAVICON, c.getBlob(2));
                             imageValues.put(Images.TOUCH_ICON, c.getBlob(3));
-                            db.insert(TABLE_IMAGES, Images.THUMBNAIL, imageValues);
+                            writeImages(db, url, imageValues);
                             db.insert(TABLE_BOOKMARKS, Bookmarks.DIRTY, values);
                         }
                         c.close();
@@ -604,12 +848,25 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion < 37) {
+                addImageRefs(db);
+            }
+            if (oldVersion < 36) {
+                migrateImages(db);
+            }
+            if (oldVersion < 35) {
+                migrateThumbnails(db);
+            }
+            if (oldVersion < 34) {
+                createSuggestionsIndex(db);
+            }
+            if (oldVersion < 33) {
+                createIndices(db);
+            }
             if (oldVersion < 32) {
                 createOmniboxSuggestions(db);
             }
-            if (oldVersion < 31) {
-                createThumbnails(db);
-            }
+            // 31 added the thumbnails table, since replaced by ThumbnailStore
             if (oldVersion < 30) {
                 db.execSQL("DROP VIEW IF EXISTS " + VIEW_SNAPSHOTS_COMBINED);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_SNAPSHOTS);
@@ -628,7 +885,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_HISTORY);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_SEARCHES);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_IMAGES);
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_IMAGE_DATA);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_SETTINGS);
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_SUGGESTIONS_FTS);
                 mSyncHelper.onAccountsChanged(db, new Account[] {}); // remove all sync info
                 onCreate(db);
             }
@@ -696,14 +955,13 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     }
                     if (thumb != null || favicon != null) {
                         ContentValues imageValues = new ContentValues();
-                        imageValues.put(Images.URL, bookmarkDestination.toString());
                         if (favicon != null) {
                             imageValues.put(Images.FAVICON, favicon);
                         }
                         if (thumb != null) {
                             imageValues.put(Images.THUMBNAIL, thumb);
                         }
-                        db.insert(TABLE_IMAGES, Images.FAVICON, imageValues);
+                        writeImages(db, bookmarkDestination.toString(), imageValues);
                     }
                 }
             } catch (ArrayIndexOutOfBoundsException e) {
@@ -798,6 +1056,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         }
     }
 
+    ThumbnailStore getThumbnailStore() {
+        synchronized (this) {
+            if (mThumbnailStore == null) {
+                mThumbnailStore = new ThumbnailStore(getContext().getCacheDir());
+            }
+            return mThumbnailStore;
+        }
+    }
+
     @Override
     public boolean isCallerSyncAdapter(Uri uri) {
         return uri.getBooleanQueryParameter(BrowserContract.CALLER_IS_SYNCADAPTER, false);
@@ -815,6 +1082,14 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     @Override
     protected void onEndTransaction(boolean callerIsSyncAdapter) {
         super.onEndTransaction(callerIsSyncAdapter);
+        if (mHomepageChanged.get() != null && mHomepageChanged.get()) {
+            mHomepageChanged.set(false);
+            MostVisitedCache.onHistoryChanged(getContext());
+        }
+        if (mHistoryDeleted.get() != null && mHistoryDeleted.get()) {
+            mHistoryDeleted.set(false);
+            VisitedLinkStore.onHistoryDeleted(getContext());
+        }
         if (mUpdateWidgets) {
             if (mWidgetObserver == null) {
                 BookmarkThumbnailWidgetProvider.refreshWidgets(getContext());
@@ -1069,7 +1344,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
 
             case IMAGES: {
-                qb.setTables(TABLE_IMAGES);
+                qb.setTables(TABLE_IMAGES_JOIN_IMAGE_DATA);
                 qb.setProjectionMap(IMAGES_PROJECTION_MAP);
                 break;
             }
@@ -1103,20 +1378,32 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 break;
             }
 
-            case THUMBNAILS_ID: {
-                selection = DatabaseUtils.concatenateWhere(
-                        selection, Thumbnails._ID + " = ?");
-                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
-                        new String[] { Long.toString(ContentUris.parseId(uri)) });
-                // fall through
-            }
+            case THUMBNAILS_ID:
             case THUMBNAILS: {
-                qb.setTables(TABLE_THUMBNAILS);
-                break;
+                return queryThumbnails(uri, match, projection);
             }
 
             case OMNIBOX_SUGGESTIONS: {
-                qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                String filter = uri.getQueryParameter(
+                        OmniboxSuggestions.QUERY_PARAMETER_FILTER);
+                if (filter == null) {
+                    qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                    break;
+                }
+                String match = buildSuggestMatch(filter);
+                if (match == null) {
+                    // Nothing indexable was typed, so nothing can match
+                    selection = "0";
+                    selectionArgs = null;
+                    qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                    break;
+                }
+                qb.setTables("(" + SQL_OMNIBOX_SUGGESTIONS_MATCH + ")");
+                selection = null;
+                selectionArgs = new String[] { match };
+                if (sortOrder == null) {
+                    sortOrder = DEFAULT_SORT_OMNIBOX_SUGGESTIONS;
+                }
                 break;
             }
 
@@ -1131,13 +1418,141 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return cursor;
     }
 
+    // Thumbnails live in the ThumbnailStore rather than the database. The
+    // insert/update/delete overrides keep them out of the provider's
+    // write transactions altogether.
+
+    private Cursor queryThumbnails(Uri uri, int match, String[] projection) {
+        if (projection == null) {
+            projection = new String[] { Thumbnails._ID, Thumbnails.THUMBNAIL };
+        }
+        ThumbnailStore store = getThumbnailStore();
+        List<Long> ids;
+        if (match == THUMBNAILS_ID) {
+            ids = new ArrayList<Long>(1);
+            ids.add(ContentUris.parseId(uri));
+        } else {
+            ids = store.list();
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, ids.size());
+        for (Long id : ids) {
+            byte[] data;
+            try {
+                data = store.read(id);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read thumbnail " + id, e);
+                data = null;
+            }
+            if (data == null) {
+                continue;
+            }
+            MatrixCursor.RowBuilder row = cursor.newRow();
+            for (String column : projection) {
+                if (Thumbnails._ID.equals(column)) {
+                    row.add(id);
+                } else if (Thumbnails.THUMBNAIL.equals(column)) {
+                    row.add(data);
+                } else {
+                    throw new IllegalArgumentException("Unknown column " + column);
+                }
+            }
+        }
+        return cursor;
+    }
+
+    private Uri insertThumbnail(Uri uri, ContentValues values) {
+        Long id = values.getAsLong(Thumbnails._ID);
+        byte[] data = values.getAsByteArray(Thumbnails.THUMBNAIL);
+        if (id == null || data == null) {
+            throw new IllegalArgumentException("Thumbnails require _ID and THUMBNAIL");
+        }
+        try {
+            getThumbnailStore().write(id, data);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write thumbnail " + id, e);
+            return null;
+        }
+        getContext().getContentResolver().notifyChange(uri, null, false);
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    private int deleteThumbnails(Uri uri, int match, String selection) {
+        if (selection != null) {
+            throw new IllegalArgumentException("Selections are not supported for "
+                    + uri + ", use " + Thumbnails.QUERY_PARAMETER_KEEP);
+        }
+        ThumbnailStore store = getThumbnailStore();
+        int deleted;
+        if (match == THUMBNAILS_ID) {
+            deleted = store.delete(ContentUris.parseId(uri)) ? 1 : 0;
+        } else {
+            List<Long> keep = null;
+            String keepParam = uri.getQueryParameter(Thumbnails.QUERY_PARAMETER_KEEP);
+            if (!TextUtils.isEmpty(keepParam)) {
+                keep = new ArrayList<Long>();
+                for (String id : TextUtils.split(keepParam, ",")) {
+                    keep.add(Long.parseLong(id.trim()));
+                }
+            }
+            deleted = store.deleteAllExcept(keep);
+        }
+        if (deleted > 0) {
+            getContext().getContentResolver().notifyChange(uri, null, false);
+        }
+        return deleted;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        if (URI_MATCHER.match(uri) == THUMBNAILS) {
+            return insertThumbnail(uri, values);
+        }
+        return super.insert(uri, values);
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        if (URI_MATCHER.match(uri) == THUMBNAILS) {
+            // Thumbnails are whole values, an update is a replace
+            return insertThumbnail(uri, values) != null ? 1 : 0;
+        }
+        return super.update(uri, values, selection, selectionArgs);
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        int match = URI_MATCHER.match(uri);
+        if (match == THUMBNAILS || match == THUMBNAILS_ID) {
+            return deleteThumbnails(uri, match, selection);
+        }
+        return super.delete(uri, selection, selectionArgs);
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (URI_MATCHER.match(uri) != THUMBNAILS_ID) {
+            throw new FileNotFoundException("No files supported for " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Thumbnails are read only: " + uri);
+        }
+        File file = getThumbnailStore().getFile(ContentUris.parseId(uri));
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
     private Cursor doSuggestQuery(String selection, String[] selectionArgs, String limit) {
+        String orderBy = null;
         if (TextUtils.isEmpty(selectionArgs[0])) {
             selection = ZERO_QUERY_SUGGEST_SELECTION;
             selectionArgs = null;
         } else {
             String like = selectionArgs[0] + "%";
-            if (selectionArgs[0].startsWith("http")
+            String match = buildSuggestMatch(selectionArgs[0]);
+            if (match != null) {
+                selectionArgs = new String[] { match };
+                selection = FTS_SUGGEST_SELECTION;
+                orderBy = DEFAULT_SORT_SUGGEST;
+            } else if (selectionArgs[0].startsWith("http")
                     || selectionArgs[0].startsWith("file")) {
                 selectionArgs[0] = like;
             } else {
@@ -1157,11 +1572,49 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         }
         Cursor c = mOpenHelper.getReadableDatabase().query(TABLE_BOOKMARKS_JOIN_HISTORY,
                 SUGGEST_PROJECTION, selection, selectionArgs, null, null,
-                null, null);
+                orderBy, orderBy != null ? limit : null);
 
         return new SuggestionsCursor(c);
     }
 
+    /**
+     * Turns typed text into an FTS prefix phrase query, e.g.
+     * "https://www.google.com/se" becomes "google com se*". The scheme and
+     * a leading "www." are dropped as they are noise in every url.
+     * Returns null if the text contains nothing that can be matched.
+     */
+    static String buildSuggestMatch(String constraint) {
+        String text = constraint.trim();
+        for (String prefix : SUGGEST_STRIPPED_PREFIXES) {
+            if (text.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                text = text.substring(prefix.length());
+                break;
+            }
+        }
+        if (text.regionMatches(true, 0, "www.", 0, 4)) {
+            text = text.substring(4);
+        }
+        StringBuilder match = new StringBuilder(text.length() + 3);
+        boolean inToken = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            // Mirrors the "simple" tokenizer: non-ASCII is always a token char
+            if (c >= 0x80 || Character.isLetterOrDigit(c)) {
+                if (!inToken && match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(c);
+                inToken = true;
+            } else {
+                inToken = false;
+            }
+        }
+        if (match.length() == 0) {
+            return null;
+        }
+        return match.insert(0, '"').append("*\"").toString();
+    }
+
     private String[] createCombinedQuery(
             Uri uri, String[] projection, SQLiteQueryBuilder qb) {
         String[] args = null;
@@ -1291,7 +1744,6 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 selection = (String) withAccount[0];
                 selectionArgs = (String[]) withAccount[1];
                 deleted = deleteBookmarks(selection, selectionArgs, callerIsSyncAdapter);
-                pruneImages();
                 if (deleted > 0) {
                     refreshWidgets();
                 }
@@ -1307,7 +1759,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             case HISTORY: {
                 filterSearchClient(selectionArgs);
                 deleted = db.delete(TABLE_HISTORY, selection, selectionArgs);
-                pruneImages();
+                if (deleted > 0) {
+                    mHistoryDeleted.set(true);
+                }
                 break;
             }
 
@@ -1369,20 +1823,12 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                                 new String[] { Long.toString(id) });
                     }
                 }
+                if (c.getCount() > 0) {
+                    mHistoryDeleted.set(true);
+                }
                 c.close();
                 break;
             }
-            case THUMBNAILS_ID: {
-                selection = DatabaseUtils.concatenateWhere(
-                        selection, Thumbnails._ID + " = ?");
-                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
-                        new String[] { Long.toString(ContentUris.parseId(uri)) });
-                // fall through
-            }
-            case THUMBNAILS: {
-                deleted = db.delete(TABLE_THUMBNAILS, selection, selectionArgs);
-                break;
-            }
             default: {
                 throw new UnsupportedOperationException("Unknown delete URI " + uri);
             }
@@ -1478,11 +1924,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 Boolean isFolder = values.getAsBoolean(Bookmarks.IS_FOLDER);
                 if ((isFolder == null || !isFolder)
                         && imageValues != null && !TextUtils.isEmpty(url)) {
-                    int count = db.update(TABLE_IMAGES, imageValues, Images.URL + "=?",
-                            new String[] { url });
-                    if (count == 0) {
-                        db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, imageValues);
-                    }
+                    writeImages(db, url, imageValues);
                 }
 
                 id = db.insertOrThrow(TABLE_BOOKMARKS, Bookmarks.DIRTY, values);
@@ -1500,10 +1942,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 values.put(History.URL, url);
 
                 // Extract out the image values so they can be inserted into the images table
-                ContentValues imageValues = extractImageValues(values,
-                        values.getAsString(History.URL));
+                ContentValues imageValues = extractImageValues(values, url);
                 if (imageValues != null) {
-                    db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, imageValues);
+                    writeImages(db, url, imageValues);
                 }
 
                 id = db.insertOrThrow(TABLE_HISTORY, History.VISITS, values);
@@ -1526,11 +1967,6 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 break;
             }
 
-            case THUMBNAILS: {
-                id = db.replaceOrThrow(TABLE_THUMBNAILS, null, values);
-                break;
-            }
-
             default: {
                 throw new UnsupportedOperationException("Unknown insert URI " + uri);
             }
@@ -1743,15 +2179,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 if (TextUtils.isEmpty(url)) {
                     throw new IllegalArgumentException("Images.URL is required");
                 }
-                if (!shouldUpdateImages(db, url, values)) {
+                if (!writeImages(db, url, values)) {
                     return 0;
                 }
-                int count = db.update(TABLE_IMAGES, values, Images.URL + "=?",
-                        new String[] { url });
-                if (count == 0) {
-                    db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, values);
-                    count = 1;
-                }
+                int count = 1;
                 // Only favicon is exposed in the public API. If we updated
                 // the thumbnail or touch icon don't bother notifying the
                 // legacy authority since it can't read it anyway.
@@ -1765,7 +2196,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     postNotifyUri(History.CONTENT_URI);
                     updatedLegacy = values.containsKey(Images.FAVICON);
                 }
-                if (pruneImages() > 0 || updatedLegacy) {
+                if (updatedLegacy) {
                     postNotifyUri(LEGACY_AUTHORITY_URI);
                 }
                 // Even though we may be calling notifyUri on Bookmarks, don't
@@ -1786,17 +2217,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 break;
             }
 
-            case THUMBNAILS: {
-                modified = db.update(TABLE_THUMBNAILS, values,
-                        selection, selectionArgs);
-                break;
-            }
-
             default: {
                 throw new UnsupportedOperationException("Unknown update URI " + uri);
             }
         }
-        pruneImages();
         if (modified > 0) {
             postNotifyUri(uri);
             if (shouldNotifyLegacy(uri)) {
@@ -1806,49 +2230,61 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return modified;
     }
 
+    /**
+     * Stores the images of a url. Each image goes into image_data once per
+     * distinct content and the images row only keeps its hash, so a favicon
+     * shared by every page of a host is stored once. Returns false without
+     * writing anything if the url already has these images.
+     */
+    boolean writeImages(SQLiteDatabase db, String url, ContentValues values) {
+        ContentValues hashes = new ContentValues();
+        byte[][] data = new byte[IMAGE_COLUMNS.length][];
+        for (int i = 0; i < IMAGE_COLUMNS.length; i++) {
+            if (values.containsKey(IMAGE_COLUMNS[i])) {
+                data[i] = values.getAsByteArray(IMAGE_COLUMNS[i]);
+                hashes.put(IMAGE_HASH_COLUMNS[i], data[i] != null ? hashImage(data[i]) : null);
+            }
+        }
+        if (!shouldUpdateImages(db, url, hashes)) {
+            return false;
+        }
+        for (int i = 0; i < IMAGE_COLUMNS.length; i++) {
+            String hash = hashes.getAsString(IMAGE_HASH_COLUMNS[i]);
+            if (hash != null) {
+                db.execSQL(SQL_INSERT_IMAGE_DATA, new Object[] { hash, data[i] });
+            }
+        }
+        hashes.put(Images.URL, url);
+        String[] args = new String[] { url };
+        if (db.update(TABLE_IMAGES, hashes, Images.URL + "=?", args) == 0) {
+            // Kept up to date by triggers from here on
+            hashes.put(IMAGES_REFS, DatabaseUtils.longForQuery(db,
+                    "SELECT " + SQL_COUNT_IMAGE_REFS, new String[] { url, url }));
+            db.insertOrThrow(TABLE_IMAGES, ImageHashes.FAVICON_HASH, hashes);
+        }
+        return true;
+    }
+
     // We want to avoid sending out more URI notifications than we have to
     // Thus, we check to see if the images we are about to store are already there
     // This is used because things like a site's favion or touch icon is rarely
     // changed, but the browser tries to update it every time the page loads.
     // Without this, we will always send out 3 URI notifications per page load.
     // With this, that drops to 0 or 1, depending on if the thumbnail changed.
+    // Only the hashes are compared, the blobs are never read back.
     private boolean shouldUpdateImages(
-            SQLiteDatabase db, String url, ContentValues values) {
-        final String[] projection = new String[] {
-                Images.FAVICON,
-                Images.THUMBNAIL,
-                Images.TOUCH_ICON,
-        };
-        Cursor cursor = db.query(TABLE_IMAGES, projection, Images.URL + "=?",
+            SQLiteDatabase db, String url, ContentValues hashes) {
+        Cursor cursor = db.query(TABLE_IMAGES, IMAGE_HASH_COLUMNS, Images.URL + "=?",
                 new String[] { url }, null, null, null);
-        byte[] nfavicon = values.getAsByteArray(Images.FAVICON);
-        byte[] nthumb = values.getAsByteArray(Images.THUMBNAIL);
-        byte[] ntouch = values.getAsByteArray(Images.TOUCH_ICON);
-        byte[] cfavicon = null;
-        byte[] cthumb = null;
-        byte[] ctouch = null;
         try {
-            if (cursor.getCount() <= 0) {
-                return nfavicon != null || nthumb != null || ntouch != null;
-            }
-            while (cursor.moveToNext()) {
-                if (nfavicon != null) {
-                    cfavicon = cursor.getBlob(0);
-                    if (!Arrays.equals(nfavicon, cfavicon)) {
-                        return true;
-                    }
-                }
-                if (nthumb != null) {
-                    cthumb = cursor.getBlob(1);
-                    if (!Arrays.equals(nthumb, cthumb)) {
-                        return true;
-                    }
+            boolean exists = cursor.moveToFirst();
+            for (int i = 0; i < IMAGE_HASH_COLUMNS.length; i++) {
+                if (!hashes.containsKey(IMAGE_HASH_COLUMNS[i])) {
+                    continue;
                 }
-                if (ntouch != null) {
-                    ctouch = cursor.getBlob(2);
-                    if (!Arrays.equals(ntouch, ctouch)) {
-                        return true;
-                    }
+                String hash = hashes.getAsString(IMAGE_HASH_COLUMNS[i]);
+                if (exists ? !TextUtils.equals(hash, cursor.getString(i)) : hash != null) {
+                    return true;
                 }
             }
         } finally {
@@ -1857,6 +2293,25 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return false;
     }
 
+    /**
+     * Returns the SHA-1 of an image as hex, the key of its image_data row.
+     */
+    static String hashImage(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        byte[] hash = digest.digest(data);
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
     int getUrlCount(SQLiteDatabase db, String table, String url) {
         Cursor c = db.query(table, new String[] { "COUNT(*)" },
                 "url = ?", new String[] { url }, null, null, null);
@@ -1969,14 +2424,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 if (imageValues != null) {
                     if (!updatingUrl) {
                         url = cursor.getString(2);
-                        imageValues.put(Images.URL, url);
                     }
 
                     if (!TextUtils.isEmpty(url)) {
-                        args[0] = url;
-                        if (db.update(TABLE_IMAGES, imageValues, Images.URL + "=?", args) == 0) {
-                            db.insert(TABLE_IMAGES, Images.FAVICON, imageValues);
-                        }
+                        writeImages(db, url, imageValues);
                     }
                 }
             }
@@ -2038,12 +2489,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 if (imageValues != null) {
                     if (!updatingUrl) {
                         url = cursor.getString(1);
-                        imageValues.put(Images.URL, url);
-                    }
-                    args[0] = url;
-                    if (db.update(TABLE_IMAGES, imageValues, Images.URL + "=?", args) == 0) {
-                        db.insert(TABLE_IMAGES, Images.FAVICON, imageValues);
                     }
+                    writeImages(db, url, imageValues);
                 }
             }
         } finally {
@@ -2115,9 +2562,147 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return imageValues;
     }
 
-    int pruneImages() {
+    /**
+     * Deletes up to limit images that no bookmark or history row uses any
+     * more, in a transaction of its own. Returns the number deleted. The
+     * orphans are found through an index, bookmarks and history are not
+     * read at all.
+     */
+    int reclaimImages(int limit) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        return db.delete(TABLE_IMAGES, IMAGE_PRUNE, null);
+        db.beginTransaction();
+        try {
+            int deleted = db.delete(TABLE_IMAGES, IMAGE_RECLAIM,
+                    new String[] { Integer.toString(limit) });
+            db.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Visits.METHOD_RECORD.equals(method)) {
+            enforceWritePermission();
+            return recordVisits(extras);
+        }
+        if (!Maintenance.METHOD_RUN.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        enforceWritePermission();
+        synchronized (this) {
+            if (mMaintenance == null) {
+                mMaintenance = new DatabaseMaintenance(this);
+            }
+        }
+        long budget = extras != null ? extras.getLong(Maintenance.EXTRA_BUDGET) : 0;
+        Bundle result = new Bundle();
+        result.putBoolean(Maintenance.RESULT_DONE,
+                mMaintenance.run(mOpenHelper.getWritableDatabase(), budget));
+        return result;
+    }
+
+    private void enforceWritePermission() {
+        // Calls from our own process hold it anyway
+        if (Binder.getCallingPid() != Process.myPid()) {
+            getContext().enforceCallingPermission(PERMISSION_WRITE, null);
+        }
+    }
+
+    Bundle recordVisits(Bundle extras) {
+        String[] urls = extras != null ? extras.getStringArray(Visits.EXTRA_URLS) : null;
+        int[] visits = extras != null ? extras.getIntArray(Visits.EXTRA_VISITS) : null;
+        long[] dates = extras != null ? extras.getLongArray(Visits.EXTRA_DATES) : null;
+        String[] titles = extras != null ? extras.getStringArray(Visits.EXTRA_TITLES) : null;
+        if (urls == null || visits == null || dates == null || titles == null
+                || visits.length != urls.length || dates.length != urls.length
+                || titles.length != urls.length) {
+            throw new IllegalArgumentException("Visits require matching "
+                    + "urls, visits, dates and titles");
+        }
+        long[] ids = new long[urls.length];
+        boolean modified = false;
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < urls.length; i++) {
+                ids[i] = recordVisitInTransaction(db, urls[i], visits[i], dates[i],
+                        titles[i]);
+                modified |= ids[i] >= 0 && (visits[i] > 0 || titles[i] != null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (modified) {
+            postNotifyUri(History.CONTENT_URI);
+            postNotifyUri(LEGACY_AUTHORITY_URI);
+        }
+        onEndTransaction(false);
+        Bundle result = new Bundle();
+        result.putLongArray(Visits.RESULT_IDS, ids);
+        return result;
+    }
+
+    /**
+     * Adds visits to the url's history row, inserting it if needed, and
+     * returns its id. Only a title is set for a url that isn't in history,
+     * -1 is returned instead.
+     */
+    long recordVisitInTransaction(SQLiteDatabase db, String url, int visits, long date,
+            String title) {
+        url = filterSearchClient(url);
+        long id = -1;
+        Cursor c = db.rawQuery(SQL_HISTORY_ID_FOR_URL, new String[] { url });
+        try {
+            if (c.moveToFirst()) {
+                id = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+        if (id < 0) {
+            if (visits <= 0) {
+                return -1;
+            }
+            ContentValues values = new ContentValues();
+            values.put(History.URL, url);
+            values.put(History.VISITS, visits);
+            values.put(History.DATE_LAST_VISITED, date);
+            values.put(History.TITLE, title != null ? title : url);
+            values.put(History.DATE_CREATED, 0);
+            values.put(History.USER_ENTERED, 0);
+            return db.insertOrThrow(TABLE_HISTORY, History.VISITS, values);
+        }
+        if (visits > 0) {
+            db.execSQL(SQL_RECORD_VISIT, new Object[] { visits, date, title, id });
+        } else if (title != null) {
+            ContentValues values = new ContentValues();
+            values.put(History.TITLE, title);
+            db.update(TABLE_HISTORY, values, "_id=?", new String[] { Long.toString(id) });
+        }
+        return id;
+    }
+
+    @Override
+    protected void postNotifyUri(Uri uri) {
+        super.postNotifyUri(uri);
+        switch (URI_MATCHER.match(uri)) {
+            case BOOKMARKS:
+            case BOOKMARKS_ID:
+            case BOOKMARKS_FOLDER:
+            case BOOKMARKS_FOLDER_ID:
+            case HISTORY:
+            case HISTORY_ID:
+            case IMAGES:
+            case COMBINED:
+            case COMBINED_ID:
+            case LEGACY:
+            case LEGACY_ID:
+                mHomepageChanged.set(true);
+                break;
+        }
     }
 
     boolean shouldNotifyLegacy(Uri uri) {
@@ -2265,6 +2850,167 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             + "    WHERE deleted = 0 AND folder = 0) "
             + "  ORDER BY bookmark DESC, visits DESC, date DESC ";
 
+    // image_data.refs counts the images columns naming the row, the
+    // triggers drop a row as soon as nothing names it any more
+    static final String[] SQL_CREATE_IMAGES = new String[] {
+            "CREATE TABLE images ("
+            + "url_key TEXT UNIQUE NOT NULL, "
+            + "favicon_hash TEXT, "
+            + "thumbnail_hash TEXT, "
+            + "touch_icon_hash TEXT, "
+            + "refs INTEGER NOT NULL DEFAULT 0)",
+            "CREATE TABLE image_data ("
+            + "hash TEXT PRIMARY KEY NOT NULL, "
+            + "data BLOB NOT NULL, "
+            + "refs INTEGER NOT NULL DEFAULT 0)",
+            "CREATE TRIGGER images_insert "
+            + "AFTER INSERT ON images BEGIN "
+            + "  UPDATE image_data SET refs = refs + 1 WHERE hash = new.favicon_hash; "
+            + "  UPDATE image_data SET refs = refs + 1 WHERE hash = new.thumbnail_hash; "
+            + "  UPDATE image_data SET refs = refs + 1 WHERE hash = new.touch_icon_hash; "
+            + "END",
+            "CREATE TRIGGER images_update "
+            + "AFTER UPDATE OF favicon_hash, thumbnail_hash, touch_icon_hash ON images BEGIN "
+            + "  UPDATE image_data SET refs = refs + 1 WHERE hash = new.favicon_hash; "
+            + "  UPDATE image_data SET refs = refs + 1 WHERE hash = new.thumbnail_hash; "
+            + "  UPDATE image_data SET refs = refs + 1 WHERE hash = new.touch_icon_hash; "
+            + "  UPDATE image_data SET refs = refs - 1 WHERE hash = old.favicon_hash; "
+            + "  UPDATE image_data SET refs = refs - 1 WHERE hash = old.thumbnail_hash; "
+            + "  UPDATE image_data SET refs = refs - 1 WHERE hash = old.touch_icon_hash; "
+            + "  DELETE FROM image_data WHERE refs <= 0 AND hash IN "
+            + "    (old.favicon_hash, old.thumbnail_hash, old.touch_icon_hash); "
+            + "END",
+            "CREATE TRIGGER images_delete "
+            + "AFTER DELETE ON images BEGIN "
+            + "  UPDATE image_data SET refs = refs - 1 WHERE hash = old.favicon_hash; "
+            + "  UPDATE image_data SET refs = refs - 1 WHERE hash = old.thumbnail_hash; "
+            + "  UPDATE image_data SET refs = refs - 1 WHERE hash = old.touch_icon_hash; "
+            + "  DELETE FROM image_data WHERE refs <= 0 AND hash IN "
+            + "    (old.favicon_hash, old.thumbnail_hash, old.touch_icon_hash); "
+            + "END",
+    };
+
+    // images.refs counts the non deleted bookmarks and the history rows
+    // with the url. The partial index holds just the orphans.
+    static final String[] SQL_CREATE_IMAGE_REFS = new String[] {
+            "CREATE INDEX IF NOT EXISTS imagesOrphanIndex "
+            + "ON images(refs) WHERE refs <= 0",
+            "CREATE TRIGGER IF NOT EXISTS bookmarks_images_insert "
+            + "AFTER INSERT ON bookmarks WHEN new.deleted = 0 BEGIN "
+            + "  UPDATE images SET refs = refs + 1 WHERE url_key = new.url; "
+            + "END",
+            "CREATE TRIGGER IF NOT EXISTS bookmarks_images_update "
+            + "AFTER UPDATE OF url, deleted ON bookmarks BEGIN "
+            + "  UPDATE images SET refs = refs - 1 "
+            + "  WHERE url_key = old.url AND old.deleted = 0; "
+            + "  UPDATE images SET refs = refs + 1 "
+            + "  WHERE url_key = new.url AND new.deleted = 0; "
+            + "END",
+            "CREATE TRIGGER IF NOT EXISTS bookmarks_images_delete "
+            + "AFTER DELETE ON bookmarks WHEN old.deleted = 0 BEGIN "
+            + "  UPDATE images SET refs = refs - 1 WHERE url_key = old.url; "
+            + "END",
+            "CREATE TRIGGER IF NOT EXISTS history_images_insert "
+            + "AFTER INSERT ON history BEGIN "
+            + "  UPDATE images SET refs = refs + 1 WHERE url_key = new.url; "
+            + "END",
+            "CREATE TRIGGER IF NOT EXISTS history_images_update "
+            + "AFTER UPDATE OF url ON history BEGIN "
+            + "  UPDATE images SET refs = refs - 1 WHERE url_key = old.url; "
+            + "  UPDATE images SET refs = refs + 1 WHERE url_key = new.url; "
+            + "END",
+            "CREATE TRIGGER IF NOT EXISTS history_images_delete "
+            + "AFTER DELETE ON history BEGIN "
+            + "  UPDATE images SET refs = refs - 1 WHERE url_key = old.url; "
+            + "END",
+    };
+
+    // The initial images.refs of a url, takes the url twice
+    private static final String SQL_COUNT_IMAGE_REFS =
+            "(SELECT COUNT(*) FROM bookmarks WHERE url = ? AND deleted = 0)"
+            + " + (SELECT COUNT(*) FROM history WHERE url = ?)";
+
+    // Identical images share a row, the images triggers count its users
+    private static final String SQL_INSERT_IMAGE_DATA =
+            "INSERT OR IGNORE INTO image_data (hash, data) VALUES (?, ?)";
+
+    // Covering indices for the url lookups done on every page load; the
+    // trailing columns let SQLite answer the common queries from the index
+    static final String[] SQL_CREATE_INDICES = new String[] {
+            "CREATE INDEX IF NOT EXISTS bookmarksUrlIndex "
+            + "ON bookmarks(url, deleted, folder)",
+            "CREATE INDEX IF NOT EXISTS bookmarksParentIndex "
+            + "ON bookmarks(parent, deleted, position)",
+            "CREATE INDEX IF NOT EXISTS historyUrlIndex "
+            + "ON history(url, visits)",
+            "CREATE INDEX IF NOT EXISTS historyDateIndex "
+            + "ON history(date)",
+    };
+
+    private static final String DEFAULT_SORT_SUGGEST =
+            "history.visits DESC, history.date DESC";
+
+    private static final String[] SUGGEST_STRIPPED_PREFIXES = new String[] {
+            "http://", "https://", "file://",
+    };
+
+    // suggestions_fts docids are history._id for history rows and
+    // -bookmarks._id for (non deleted, non folder) bookmark rows
+    static final String[] SQL_CREATE_SUGGESTIONS_FTS = new String[] {
+            "CREATE VIRTUAL TABLE IF NOT EXISTS suggestions_fts "
+            + "USING fts4(url, title, prefix=\"2,4\")",
+            "CREATE TRIGGER IF NOT EXISTS history_fts_insert "
+            + "AFTER INSERT ON history BEGIN "
+            + "  INSERT INTO suggestions_fts(docid, url, title) "
+            + "  VALUES (new._id, new.url, new.title); "
+            + "END",
+            "CREATE TRIGGER IF NOT EXISTS history_fts_update "
+            + "AFTER UPDATE OF url, title ON history BEGIN "
+            + "  UPDATE suggestions_fts SET url = new.url, title = new.title "
+            + "  WHERE docid = old._id; "
+            + "END",
+            "CREATE TRIGGER IF NOT EXISTS history_fts_delete "
+            + "AFTER DELETE ON history BEGIN "
+            + "  DELETE FROM suggestions_fts WHERE docid = old._id; "
+            + "END",
+            "CREATE TRIGGER IF NOT EXISTS bookmarks_fts_insert "
+            + "AFTER INSERT ON bookmarks "
+            + "WHEN new.deleted = 0 AND new.folder = 0 BEGIN "
+            + "  INSERT INTO suggestions_fts(docid, url, title) "
+            + "  VALUES (-new._id, new.url, new.title); "
+            + "END",
+            "CREATE TRIGGER IF NOT EXISTS bookmarks_fts_update "
+            + "AFTER UPDATE OF url, title, deleted, folder ON bookmarks BEGIN "
+            + "  DELETE FROM suggestions_fts WHERE docid = -old._id; "
+            + "  INSERT INTO suggestions_fts(docid, url, title) "
+            + "  SELECT -new._id, new.url, new.title "
+            + "  WHERE new.deleted = 0 AND new.folder = 0; "
+            + "END",
+            "CREATE TRIGGER IF NOT EXISTS bookmarks_fts_delete "
+            + "AFTER DELETE ON bookmarks BEGIN "
+            + "  DELETE FROM suggestions_fts WHERE docid = -old._id; "
+            + "END",
+    };
+
+    // Same rows as v_omnibox_suggestions, restricted to an FTS match. Both
+    // bookmark (negative) and history (positive) docids come from a single
+    // match. Takes the match expression once.
+    private static final String SQL_OMNIBOX_SUGGESTIONS_MATCH =
+            "SELECT IFNULL(bookmarks._id, history._id) AS _id, "
+            + "  IFNULL(bookmarks.url, history.url) AS url, "
+            + "  IFNULL(bookmarks.title, history.title) AS title, "
+            + "  suggestions_fts.docid < 0 AS bookmark, "
+            + "  IFNULL(history.visits, 0) AS visits, IFNULL(history.date, 0) AS date "
+            + "FROM suggestions_fts "
+            + "  LEFT JOIN bookmarks ON suggestions_fts.docid < 0 "
+            + "    AND bookmarks._id = -suggestions_fts.docid "
+            + "  LEFT JOIN history ON suggestions_fts.docid > 0 "
+            + "    AND history._id = suggestions_fts.docid "
+            + "WHERE suggestions_fts MATCH ? "
+            + "  AND (bookmarks._id IS NOT NULL "
+            + "    OR (history._id IS NOT NULL AND history.url NOT IN (SELECT url FROM bookmarks"
+            + "      WHERE deleted = 0 AND folder = 0)))";
+
     private static final String SQL_WHERE_ACCOUNT_HAS_BOOKMARKS =
             "0 < ( "
             + "SELECT count(*) "
@@ -2279,4 +3025,13 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             + "    OR (v_accounts.account_type IS NULL AND bookmarks.account_type IS NULL) "
             + "  ) "
             + ")";
+
+    private static final String SQL_HISTORY_ID_FOR_URL =
+            "SELECT _id FROM history WHERE url = ? LIMIT 1";
+
+    // Takes the visits to add, the date, the title or null and the _id
+    private static final String SQL_RECORD_VISIT =
+            "UPDATE history SET visits = visits + ?, date = ?, "
+            + "title = COALESCE(?, title) "
+            + "WHERE _id = ?";
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.browser.provider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.BrowserContract.History;
+import android.util.Log;
+
+import com.android.browser.VisitedLinkStore;
+import com.android.browser.homepages.MostVisitedCache;
+
+/**
+ * Housekeeping for browser2.db that used to run inline on user paths, or
+ * not at all: capping history, reclaiming orphaned images, ANALYZE,
+ * incremental VACUUM and WAL checkpoints.
+ *
+ * A pass runs the jobs in order. It is done in slices of a given time
+ * budget, see {@link #run}, and the job a slice stopped in is kept in
+ * preferences, so a pass survives being stopped and the process dying.
+ * Each job records how long it took and how much it reclaimed, and each
+ * pass records the size of the database, so bloat can be tracked over time.
+ */
+class DatabaseMaintenance {
+
+    private static final String TAG = "DatabaseMaintenance";
+
+    private static final String PREFS = "db_maintenance";
+    private static final String KEY_NEXT_JOB = "next_job";
+    private static final String KEY_PASSES = "passes";
+    private static final String KEY_PAGES = "pages";
+    private static final String KEY_FREE_PAGES = "free_pages";
+    private static final String SUFFIX_DURATION = ".duration";
+    private static final String SUFFIX_TOTAL_DURATION = ".total_duration";
+    private static final String SUFFIX_RECLAIMED = ".reclaimed";
+    private static final String SUFFIX_TOTAL_RECLAIMED = ".total_reclaimed";
+    private static final String SUFFIX_PROGRESS = ".progress";
+    private static final String SUFFIX_LAST_DONE = ".last_done";
+    private static final String SUFFIX_UNFINISHED = ".unfinished";
+
+    // What android.provider.Browser.truncateHistory used to keep
+    static final int MAX_HISTORY_COUNT = 250;
+    private static final int DELETE_BATCH = 50;
+    private static final int VACUUM_STEP_PAGES = 64;
+    // Databases in the legacy auto_vacuum mode are rebuilt once, when at
+    // least this fraction of their pages is free
+    private static final int REBUILD_FREE_FRACTION = 4;
+    private static final long ANALYZE_INTERVAL = 7 * 24 * 60 * 60 * 1000L;
+    private static final String[] ANALYZE_TABLES = new String[] {
+            BrowserProvider2.TABLE_BOOKMARKS,
+            BrowserProvider2.TABLE_HISTORY,
+            BrowserProvider2.TABLE_IMAGES,
+            BrowserProvider2.TABLE_IMAGE_DATA,
+            BrowserProvider2.TABLE_SEARCHES,
+    };
+
+    private static final String SQL_TRUNCATE_HISTORY =
+            "_id IN (SELECT _id FROM history ORDER BY date ASC LIMIT ?)";
+
+    private final BrowserProvider2 mProvider;
+    private final SharedPreferences mPrefs;
+
+    /**
+     * One step of a pass. Returns once the job is finished or the deadline
+     * has passed, adding what it reclaimed to the given counter. Jobs that
+     * stop early are called again by the next slice.
+     */
+    abstract class Job {
+        final String mName;
+
+        Job(String name) {
+            mName = name;
+        }
+
+        abstract boolean run(SQLiteDatabase db, long deadline, long[] reclaimed);
+    }
+
+    private final Job[] mJobs = new Job[] {
+        // Rows of history
+        new Job("truncate_history") {
+            @Override
+            boolean run(SQLiteDatabase db, long deadline, long[] reclaimed) {
+                long excess = DatabaseUtils.queryNumEntries(db,
+                        BrowserProvider2.TABLE_HISTORY) - MAX_HISTORY_COUNT;
+                boolean deleted = false;
+                while (excess > 0 && SystemClock.uptimeMillis() < deadline) {
+                    int batch = (int) Math.min(excess, DELETE_BATCH);
+                    int count = db.delete(BrowserProvider2.TABLE_HISTORY,
+                            SQL_TRUNCATE_HISTORY, new String[] { Integer.toString(batch) });
+                    excess -= batch;
+                    reclaimed[0] += count;
+                    deleted |= count > 0;
+                }
+                if (deleted) {
+                    MostVisitedCache.onHistoryChanged(mProvider.getContext());
+                    VisitedLinkStore.onHistoryDeleted(mProvider.getContext());
+                    mProvider.getContext().getContentResolver().notifyChange(
+                            History.CONTENT_URI, null, false);
+                }
+                return excess <= 0;
+            }
+        },
+        // Rows of images
+        new Job("reclaim_images") {
+            @Override
+            boolean run(SQLiteDatabase db, long deadline, long[] reclaimed) {
+                while (SystemClock.uptimeMillis() < deadline) {
+                    int count = mProvider.reclaimImages(DELETE_BATCH);
+                    reclaimed[0] += count;
+                    if (count < DELETE_BATCH) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        },
+        // Tables analyzed, at most once per ANALYZE_INTERVAL
+        new Job("analyze") {
+            @Override
+            boolean run(SQLiteDatabase db, long deadline, long[] reclaimed) {
+                if (System.currentTimeMillis() - mPrefs.getLong(mName + SUFFIX_LAST_DONE, 0)
+                        < ANALYZE_INTERVAL) {
+                    return true;
+                }
+                int next = mPrefs.getInt(mName + SUFFIX_PROGRESS, 0);
+                while (next < ANALYZE_TABLES.length) {
+                    if (SystemClock.uptimeMillis() >= deadline) {
+                        mPrefs.edit().putInt(mName + SUFFIX_PROGRESS, next).apply();
+                        return false;
+                    }
+                    db.execSQL("ANALYZE " + ANALYZE_TABLES[next++]);
+                    reclaimed[0]++;
+                }
+                mPrefs.edit()
+                        .putInt(mName + SUFFIX_PROGRESS, 0)
+                        .putLong(mName + SUFFIX_LAST_DONE, System.currentTimeMillis())
+                        .apply();
+                return true;
+            }
+        },
+        // Pages returned to the file system
+        new Job("vacuum") {
+            @Override
+            boolean run(SQLiteDatabase db, long deadline, long[] reclaimed) {
+                long free = pragma(db, "freelist_count");
+                if (free == 0) {
+                    return true;
+                }
+                if (pragma(db, "auto_vacuum") != 2) {
+                    // Created before incremental vacuum was turned on, see
+                    // DatabaseHelper.onConfigure. Switching takes a full
+                    // rebuild, so only do it once it pays off.
+                    if (free * REBUILD_FREE_FRACTION >= pragma(db, "page_count")) {
+                        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                        db.execSQL("VACUUM");
+                        reclaimed[0] += free - pragma(db, "freelist_count");
+                    }
+                    return true;
+                }
+                while (free > 0 && SystemClock.uptimeMillis() < deadline) {
+                    pragma(db, "incremental_vacuum(" + VACUUM_STEP_PAGES + ")");
+                    long left = pragma(db, "freelist_count");
+                    reclaimed[0] += free - left;
+                    free = left;
+                }
+                return free == 0;
+            }
+        },
+        // Frames copied back from the WAL
+        new Job("checkpoint") {
+            @Override
+            boolean run(SQLiteDatabase db, long deadline, long[] reclaimed) {
+                Cursor c = db.rawQuery("PRAGMA wal_checkpoint(RESTART)", null);
+                try {
+                    if (c.moveToFirst() && c.getColumnCount() > 2) {
+                        reclaimed[0] += Math.max(0, c.getLong(2));
+                    }
+                } finally {
+                    c.close();
+                }
+                return true;
+            }
+        },
+    };
+
+    DatabaseMaintenance(BrowserProvider2 provider) {
+        mProvider = provider;
+        mPrefs = provider.getContext().getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Runs jobs for about budget milliseconds, a single ANALYZE or VACUUM
+     * statement can take longer. Returns true once the pass is finished,
+     * the next call starts a new one.
+     */
+    synchronized boolean run(SQLiteDatabase db, long budget) {
+        long deadline = SystemClock.uptimeMillis() + budget;
+        int next = mPrefs.getInt(KEY_NEXT_JOB, 0);
+        while (next < mJobs.length) {
+            Job job = mJobs[next];
+            long start = SystemClock.uptimeMillis();
+            long[] reclaimed = new long[1];
+            boolean done = job.run(db, deadline, reclaimed);
+            record(job, SystemClock.uptimeMillis() - start, reclaimed[0], done);
+            if (!done) {
+                mPrefs.edit().putInt(KEY_NEXT_JOB, next).apply();
+                return false;
+            }
+            next++;
+            if (next < mJobs.length && SystemClock.uptimeMillis() >= deadline) {
+                mPrefs.edit().putInt(KEY_NEXT_JOB, next).apply();
+                return false;
+            }
+        }
+        long pages = pragma(db, "page_count");
+        long free = pragma(db, "freelist_count");
+        mPrefs.edit()
+                .putInt(KEY_NEXT_JOB, 0)
+                .putInt(KEY_PASSES, mPrefs.getInt(KEY_PASSES, 0) + 1)
+                .putLong(KEY_PAGES, pages)
+                .putLong(KEY_FREE_PAGES, free)
+                .apply();
+        Log.i(TAG, "Pass done, " + pages + " pages, " + free + " free");
+        return true;
+    }
+
+    /**
+     * Adds a slice of a job to its statistics. A job's duration and
+     * reclaimed count cover the whole pass, even when it took several
+     * slices.
+     */
+    private void record(Job job, long duration, long reclaimed, boolean done) {
+        String name = job.mName;
+        boolean resumed = mPrefs.getBoolean(name + SUFFIX_UNFINISHED, false);
+        long passDuration = duration
+                + (resumed ? mPrefs.getLong(name + SUFFIX_DURATION, 0) : 0);
+        long passReclaimed = reclaimed
+                + (resumed ? mPrefs.getLong(name + SUFFIX_RECLAIMED, 0) : 0);
+        mPrefs.edit()
+                .putLong(name + SUFFIX_DURATION, passDuration)
+                .putLong(name + SUFFIX_RECLAIMED, passReclaimed)
+                .putLong(name + SUFFIX_TOTAL_DURATION,
+                        mPrefs.getLong(name + SUFFIX_TOTAL_DURATION, 0) + duration)
+                .putLong(name + SUFFIX_TOTAL_RECLAIMED,
+                        mPrefs.getLong(name + SUFFIX_TOTAL_RECLAIMED, 0) + reclaimed)
+                .putBoolean(name + SUFFIX_UNFINISHED, !done)
+                .apply();
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, name + " took " + duration + "ms, reclaimed " + reclaimed);
+        }
+    }
+
+    private static long pragma(SQLiteDatabase db, String pragma) {
+        Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+}
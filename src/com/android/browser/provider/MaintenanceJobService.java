@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.browser.provider;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.os.Bundle;
+import android.provider.BrowserContract;
+import android.util.Log;
+
+import com.android.browser.BackgroundHandler;
+import com.android.browser.provider.BrowserProvider2.Maintenance;
+
+/**
+ * Runs {@link DatabaseMaintenance} while the device is idle and charging.
+ * The work is done in short slices so that the browser is never locked out
+ * of the database for long, and a stopped job picks up where it left off
+ * the next time.
+ */
+public class MaintenanceJobService extends JobService {
+
+    private static final String LOGTAG = "MaintenanceJobService";
+
+    private static final int JOB_ID = 1;
+    private static final long INTERVAL = 24 * 60 * 60 * 1000L;
+    private static final long SLICE_BUDGET = 500;
+
+    private volatile boolean mStopped;
+
+    /**
+     * Schedules the job unless it already is. Does IPC, call it off the UI
+     * thread.
+     */
+    public static void schedule(Context context) {
+        JobScheduler scheduler = (JobScheduler)
+                context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, MaintenanceJobService.class))
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPeriodic(INTERVAL)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        mStopped = false;
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                runSlices();
+                jobFinished(params, false);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        mStopped = true;
+        // Progress is kept, the next periodic run resumes it
+        return false;
+    }
+
+    private void runSlices() {
+        Bundle extras = new Bundle();
+        extras.putLong(Maintenance.EXTRA_BUDGET, SLICE_BUDGET);
+        try {
+            while (!mStopped) {
+                Bundle result = getContentResolver().call(BrowserContract.AUTHORITY_URI,
+                        Maintenance.METHOD_RUN, null, extras);
+                if (result == null || result.getBoolean(Maintenance.RESULT_DONE)) {
+                    return;
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.w(LOGTAG, "Database maintenance failed", e);
+        }
+    }
+}
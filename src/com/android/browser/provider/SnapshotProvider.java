@@ -31,6 +31,7 @@ import android.provider.BrowserContract;
 import android.text.TextUtils;
 
 import java.io.File;
+import java.util.ArrayList;
 
 public class SnapshotProvider extends ContentProvider {
 
@@ -75,6 +76,8 @@ public class SnapshotProvider extends ContentProvider {
 
         public SnapshotDatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            // Snapshots are listed while others are saved
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override
@@ -211,16 +214,24 @@ public class SnapshotProvider extends ContentProvider {
     static final String[] DELETE_PROJECTION = new String[] {
         Snapshots.VIEWSTATE_PATH,
     };
-    private void deleteDataFiles(SQLiteDatabase db, String selection,
+    private ArrayList<String> queryDataFiles(SQLiteDatabase db, String selection,
             String[] selectionArgs) {
+        ArrayList<String> filenames = new ArrayList<String>();
         Cursor c = db.query(TABLE_SNAPSHOTS, DELETE_PROJECTION, selection,
                 selectionArgs, null, null, null);
-        final Context context = getContext();
         while (c.moveToNext()) {
             String filename = c.getString(0);
-            if (TextUtils.isEmpty(filename)) {
-                continue;
+            if (!TextUtils.isEmpty(filename)) {
+                filenames.add(filename);
             }
+        }
+        c.close();
+        return filenames;
+    }
+
+    private void deleteDataFiles(ArrayList<String> filenames) {
+        final Context context = getContext();
+        for (String filename : filenames) {
             File f = context.getFileStreamPath(filename);
             if (f.exists()) {
                 if (!f.delete()) {
@@ -228,7 +239,6 @@ public class SnapshotProvider extends ContentProvider {
                 }
             }
         }
-        c.close();
     }
 
     @Override
@@ -239,6 +249,7 @@ public class SnapshotProvider extends ContentProvider {
         }
         int match = URI_MATCHER.match(uri);
         int deleted = 0;
+        ArrayList<String> filenames = null;
         switch (match) {
         case SNAPSHOTS_ID: {
             selection = DatabaseUtils.concatenateWhere(selection, TABLE_SNAPSHOTS + "._id=?");
@@ -247,8 +258,16 @@ public class SnapshotProvider extends ContentProvider {
             // fall through
         }
         case SNAPSHOTS:
-            deleteDataFiles(db, selection, selectionArgs);
-            deleted = db.delete(TABLE_SNAPSHOTS, selection, selectionArgs);
+            // Files go after the rows are committed, readers don't wait on
+            // the file system
+            db.beginTransaction();
+            try {
+                filenames = queryDataFiles(db, selection, selectionArgs);
+                deleted = db.delete(TABLE_SNAPSHOTS, selection, selectionArgs);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
             break;
         default:
             throw new UnsupportedOperationException("Unknown delete URI " + uri);
@@ -256,6 +275,9 @@ public class SnapshotProvider extends ContentProvider {
         if (deleted > 0) {
             getContext().getContentResolver().notifyChange(uri, null, false);
         }
+        if (filenames != null) {
+            deleteDataFiles(filenames);
+        }
         return deleted;
     }
 
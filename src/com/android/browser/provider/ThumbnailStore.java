@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.browser.provider;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps tab thumbnails as one file per tab under the cache directory, so
+ * that saving a thumbnail never touches browser2.db. Files are replaced
+ * atomically by writing a temporary file and renaming it over the old one.
+ */
+public class ThumbnailStore {
+
+    private static final String DIRECTORY = "thumbnails";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDir;
+
+    ThumbnailStore(File cacheDir) {
+        mDir = new File(cacheDir, DIRECTORY);
+        // Left behind by a write that a crash interrupted, no write can be
+        // in progress before the store exists
+        String[] names = mDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    new File(mDir, name).delete();
+                }
+            }
+        }
+    }
+
+    File getFile(long id) {
+        return new File(mDir, Long.toString(id));
+    }
+
+    void write(long id, byte[] data) throws IOException {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Unable to create " + mDir);
+        }
+        File tmp = new File(mDir, id + TEMP_SUFFIX);
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                // No fsync, a thumbnail lost to a crash is captured again
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(getFile(id))) {
+            tmp.delete();
+            throw new IOException("Unable to rename " + tmp);
+        }
+    }
+
+    /**
+     * Returns the stored thumbnail, or null if there is none.
+     */
+    byte[] read(long id) throws IOException {
+        File file = getFile(id);
+        if (!file.exists()) {
+            return null;
+        }
+        return readFully(new FileInputStream(file));
+    }
+
+    /**
+     * Reads the stream's whole file into an array sized from the file.
+     * Closes the stream.
+     */
+    public static byte[] readFully(FileInputStream in) throws IOException {
+        try {
+            long size = in.getChannel().size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + size);
+            }
+            byte[] data = new byte[(int) size];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new EOFException("Truncated at " + offset + " of " + size);
+                }
+                offset += read;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    boolean delete(long id) {
+        return getFile(id).delete();
+    }
+
+    /**
+     * Returns the ids of all stored thumbnails.
+     */
+    List<Long> list() {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        String[] names = mDir.list();
+        if (names == null) {
+            return ids;
+        }
+        for (String name : names) {
+            try {
+                ids.add(Long.parseLong(name));
+            } catch (NumberFormatException e) {
+                // Temp file of a write in progress
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Deletes every thumbnail whose id isn't in keep, returns the number deleted.
+     */
+    int deleteAllExcept(List<Long> keep) {
+        int deleted = 0;
+        for (Long id : list()) {
+            if ((keep == null || !keep.contains(id)) && delete(id)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+}
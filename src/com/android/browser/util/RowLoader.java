@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.ArrayList;
+
+/**
+ * Loads row objects for every {@link ThreadedCursorAdapter} on a small,
+ * fixed set of background threads. Rows on screen are loaded before
+ * prefetched ones, the most recently requested first, and rows that
+ * scrolled away are dropped before they are loaded. Requests are pooled,
+ * so scrolling does not allocate.
+ *
+ * Requests are made, cancelled and delivered on the UI thread.
+ */
+class RowLoader {
+
+    private static final int THREADS = 2;
+    private static final int MAX_POOLED = 64;
+
+    // Prefetched rows use their distance from the screen
+    static final int PRIORITY_VISIBLE = 0;
+
+    static class Request implements Runnable {
+        ThreadedCursorAdapter<?> mAdapter;
+        int mPosition;
+        long mGeneration;
+        int mPriority;
+        long mSequence;
+        Object mResult;
+        boolean mQueued;
+        boolean mCancelled;
+        Request mNext;
+
+        @Override
+        public void run() {
+            mAdapter.onRowLoaded(this);
+        }
+    }
+
+    private static RowLoader sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Request> mQueue = new ArrayList<Request>();
+    private Request mPool;
+    private int mPoolSize;
+    private long mSequence;
+
+    static synchronized RowLoader getInstance() {
+        if (sInstance == null) {
+            sInstance = new RowLoader();
+        }
+        return sInstance;
+    }
+
+    private RowLoader() {
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread("RowLoader" + i) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    while (true) {
+                        Request request = take();
+                        request.mResult = request.mAdapter.loadRow(request);
+                        mHandler.post(request);
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    synchronized Request enqueue(ThreadedCursorAdapter<?> adapter, int position,
+            long generation, int priority) {
+        Request request = mPool;
+        if (request != null) {
+            mPool = request.mNext;
+            request.mNext = null;
+            mPoolSize--;
+        } else {
+            request = new Request();
+        }
+        request.mAdapter = adapter;
+        request.mPosition = position;
+        request.mGeneration = generation;
+        request.mPriority = priority;
+        request.mSequence = ++mSequence;
+        request.mQueued = true;
+        mQueue.add(request);
+        notify();
+        return request;
+    }
+
+    /**
+     * Moves a request that has not started yet to the given priority.
+     */
+    synchronized void setPriority(Request request, int priority) {
+        if (request.mQueued) {
+            request.mPriority = priority;
+            request.mSequence = ++mSequence;
+        }
+    }
+
+    /**
+     * Drops a request. One that is already being loaded still comes back
+     * to its adapter, marked cancelled.
+     */
+    synchronized void cancel(Request request) {
+        if (request.mQueued) {
+            mQueue.remove(request);
+            recycle(request);
+        } else {
+            request.mCancelled = true;
+        }
+    }
+
+    synchronized void recycle(Request request) {
+        request.mAdapter = null;
+        request.mResult = null;
+        request.mQueued = false;
+        request.mCancelled = false;
+        if (mPoolSize < MAX_POOLED) {
+            request.mNext = mPool;
+            mPool = request;
+            mPoolSize++;
+        }
+    }
+
+    private synchronized Request take() {
+        while (mQueue.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Keep serving
+            }
+        }
+        int best = 0;
+        int count = mQueue.size();
+        for (int i = 1; i < count; i++) {
+            Request request = mQueue.get(i);
+            Request current = mQueue.get(best);
+            if (request.mPriority < current.mPriority
+                    || (request.mPriority == current.mPriority
+                            && request.mSequence > current.mSequence)) {
+                best = i;
+            }
+        }
+        // Order does not matter, avoid shifting the rest
+        Request request = mQueue.get(best);
+        mQueue.set(best, mQueue.get(count - 1));
+        mQueue.remove(count - 1);
+        request.mQueued = false;
+        return request;
+    }
+}
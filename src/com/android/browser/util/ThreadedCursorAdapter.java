@@ -17,44 +17,60 @@ package com.android.browser.util;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
-import android.os.Process;
-import android.os.SystemProperties;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.Adapter;
 import android.widget.BaseAdapter;
 import android.widget.CursorAdapter;
 
 import com.android.browser.R;
 
-import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 
+/**
+ * Adapter whose row objects are built off the UI thread by the shared
+ * {@link RowLoader}. Rows are bound with {@link #getLoadingObject} until
+ * theirs is ready. Callers that know what is on screen should report it
+ * with {@link #setVisibleRange}, rows that leave it are then cancelled and
+ * rows ahead of the scroll direction are prefetched.
+ */
 public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
 
     private static final String LOGTAG = "BookmarksThreadedAdapter";
     private static final boolean DEBUG = false;
 
+    private static final int DEFAULT_PREFETCH = 8;
+    private static final int MAX_LOADED = 64;
+    private static final int MAX_RECYCLED = 16;
+
     private Context mContext;
     public Object mCursorLock = new Object();
     private CursorAdapter mCursorAdapter;
     private T mLoadingObject;
-    private Handler mLoadHandler;
-    private Handler mHandler;
+    private RowLoader mLoader;
     private int mSize;
     private boolean mHasCursor;
-    private long mGeneration;
+    private volatile long mGeneration;
+
+    // All below are only touched on the UI thread, except mRecycled
+    private SparseArray<RowLoader.Request> mPending = new SparseArray<RowLoader.Request>();
+    private SparseArray<T> mLoaded = new SparseArray<T>();
+    private SparseArray<View> mBoundViews = new SparseArray<View>();
+    private ArrayList<T> mRecycled = new ArrayList<T>();
+    // Rows dropped while a view still draws them, recycled once it is
+    // bound to something else
+    private ArrayList<T> mRetired = new ArrayList<T>();
+    private int mFirstVisible = -1;
+    private int mLastVisible = -1;
+    private int mDirection = 1;
+    private int mPrefetch = DEFAULT_PREFETCH;
 
-    private class LoadContainer {
-        WeakReference<View> view;
-        int position;
-        T bind_object;
-        Adapter owner;
-        boolean loaded;
-        long generation;
+    private static class LoadContainer {
+        ThreadedCursorAdapter<?> owner;
+        int position = -1;
+        // What the view draws
+        Object row;
     }
 
     public ThreadedCursorAdapter(Context context, Cursor c) {
@@ -76,7 +92,7 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
             public void notifyDataSetChanged() {
                 super.notifyDataSetChanged();
                 mSize = getCount();
-                mGeneration++;
+                resetRows();
                 ThreadedCursorAdapter.this.notifyDataSetChanged();
             }
 
@@ -84,45 +100,13 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
             public void notifyDataSetInvalidated() {
                 super.notifyDataSetInvalidated();
                 mSize = getCount();
-                mGeneration++;
+                resetRows();
                 ThreadedCursorAdapter.this.notifyDataSetInvalidated();
             }
 
         };
         mSize = mCursorAdapter.getCount();
-        HandlerThread thread = new HandlerThread("threaded_adapter_" + this,
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mLoadHandler = new Handler(thread.getLooper()) {
-            @SuppressWarnings("unchecked")
-            @Override
-            public void handleMessage(Message msg) {
-                if (DEBUG) {
-                    Log.d(LOGTAG, "loading: " + msg.what);
-                }
-                loadRowObject(msg.what, (LoadContainer) msg.obj);
-            }
-        };
-        mHandler = new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
-                @SuppressWarnings("unchecked")
-                LoadContainer container = (LoadContainer) msg.obj;
-                if (container == null) {
-                    return;
-                }
-                View view = container.view.get();
-                if (view == null
-                        || container.owner != ThreadedCursorAdapter.this
-                        || container.position != msg.what
-                        || view.getWindowToken() == null
-                        || container.generation != mGeneration) {
-                    return;
-                }
-                container.loaded = true;
-                bindView(view, container.bind_object);
-            }
-        };
+        mLoader = RowLoader.getInstance();
     }
 
     @Override
@@ -142,25 +126,55 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
         }
     }
 
-    private void loadRowObject(int position, LoadContainer container) {
-        if (container == null
-                || container.position != position
-                || container.owner != ThreadedCursorAdapter.this
-                || container.view.get() == null) {
-            return;
+    /**
+     * Called on a loader thread.
+     */
+    Object loadRow(RowLoader.Request request) {
+        if (DEBUG) {
+            Log.d(LOGTAG, "loading: " + request.mPosition);
         }
         synchronized (mCursorLock) {
-            if ((mCursorAdapter == null) || (mCursorAdapter.getCursor() == null)
+            if (request.mGeneration != mGeneration
+                    || (mCursorAdapter == null) || (mCursorAdapter.getCursor() == null)
                     || mCursorAdapter.getCursor().isClosed()) {
-                return;
+                return null;
             }
-            Cursor c = (Cursor) mCursorAdapter.getItem(position);
+            Cursor c = (Cursor) mCursorAdapter.getItem(request.mPosition);
             if (c == null || c.isClosed()) {
-                return;
+                return null;
             }
-            container.bind_object = getRowObject(c, container.bind_object);
+            return getRowObject(c, takeRecycledRow());
+        }
+    }
+
+    void onRowLoaded(RowLoader.Request request) {
+        int position = request.mPosition;
+        if (mPending.get(position) == request) {
+            mPending.remove(position);
+        }
+        @SuppressWarnings("unchecked")
+        T row = (T) request.mResult;
+        boolean current = !request.mCancelled && request.mGeneration == mGeneration;
+        mLoader.recycle(request);
+        if (!current || row == null) {
+            // Never bound
+            recycleRow(row);
+            return;
+        }
+        T old = mLoaded.get(position);
+        if (old != null && old != row) {
+            retireRow(old);
+        }
+        mLoaded.put(position, row);
+        trimLoaded(position);
+        View view = mBoundViews.get(position);
+        if (view == null || view.getWindowToken() == null) {
+            return;
+        }
+        LoadContainer container = (LoadContainer) view.getTag(R.id.load_object);
+        if (container != null && container.owner == this && container.position == position) {
+            bindRow(view, container, row);
         }
-        mHandler.obtainMessage(position, container).sendToTarget();
     }
 
     @Override
@@ -168,31 +182,215 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
         if (convertView == null) {
             convertView = newView(mContext, parent);
         }
-        @SuppressWarnings("unchecked")
         LoadContainer container = (LoadContainer) convertView.getTag(R.id.load_object);
         if (container == null) {
             container = new LoadContainer();
-            container.view = new WeakReference<View>(convertView);
             convertView.setTag(R.id.load_object, container);
         }
-        if (container.position == position
-                && container.owner == this
-                && container.loaded
-                && container.generation == mGeneration) {
-            bindView(convertView, container.bind_object);
+        if (container.owner != this || container.position != position) {
+            if (container.owner == this && mBoundViews.get(container.position) == convertView) {
+                // The row this view showed has scrolled away
+                mBoundViews.remove(container.position);
+                if (!inWindow(container.position)) {
+                    cancelLoad(container.position);
+                }
+            }
+            container.owner = this;
+            container.position = position;
+        }
+        mBoundViews.put(position, convertView);
+        T row = mLoaded.get(position);
+        if (row != null) {
+            bindRow(convertView, container, row);
         } else {
-            bindView(convertView, cachedLoadObject());
+            bindRow(convertView, container, cachedLoadObject());
             if (mHasCursor) {
-                container.position = position;
-                container.loaded = false;
-                container.owner = this;
-                container.generation = mGeneration;
-                mLoadHandler.obtainMessage(position, container).sendToTarget();
+                requestLoad(position, RowLoader.PRIORITY_VISIBLE);
             }
         }
         return convertView;
     }
 
+    /**
+     * Tells the adapter which positions are on screen, last < first if
+     * none are. Loads for rows that left are cancelled and the prefetch
+     * window ahead of the scroll direction is queued.
+     */
+    public void setVisibleRange(int first, int last) {
+        if (last < first) {
+            first = last = -1;
+        }
+        if (first == mFirstVisible && last == mLastVisible) {
+            return;
+        }
+        if (first >= 0 && mFirstVisible >= 0 && first != mFirstVisible) {
+            mDirection = first > mFirstVisible ? 1 : -1;
+        }
+        mFirstVisible = first;
+        mLastVisible = last;
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            int position = mPending.keyAt(i);
+            if (!inWindow(position)) {
+                cancelLoad(position);
+            }
+        }
+        for (int i = mLoaded.size() - 1; i >= 0; i--) {
+            int position = mLoaded.keyAt(i);
+            if (first < 0 || position < first - mPrefetch || position > last + mPrefetch) {
+                retireRow(mLoaded.valueAt(i));
+                mLoaded.removeAt(i);
+            }
+        }
+        if (first < 0 || !mHasCursor) {
+            return;
+        }
+        for (int i = 1; i <= mPrefetch; i++) {
+            int position = mDirection > 0 ? last + i : first - i;
+            if (position < 0 || position >= mSize) {
+                break;
+            }
+            if (mLoaded.get(position) == null) {
+                requestLoad(position, i);
+            }
+        }
+    }
+
+    /**
+     * Sets how many positions past the screen are loaded ahead of time.
+     */
+    public void setPrefetchWindow(int positions) {
+        mPrefetch = Math.max(0, Math.min(positions, MAX_LOADED / 2));
+    }
+
+    /**
+     * Whether a position is on screen or in the prefetch window ahead of
+     * it. Without a visible range nothing is.
+     */
+    private boolean inWindow(int position) {
+        if (mFirstVisible < 0) {
+            return false;
+        }
+        int from = mDirection < 0 ? mFirstVisible - mPrefetch : mFirstVisible;
+        int to = mDirection > 0 ? mLastVisible + mPrefetch : mLastVisible;
+        return position >= from && position <= to;
+    }
+
+    private void requestLoad(int position, int priority) {
+        RowLoader.Request request = mPending.get(position);
+        if (request != null) {
+            if (priority < request.mPriority) {
+                mLoader.setPriority(request, priority);
+            }
+            return;
+        }
+        mPending.put(position, mLoader.enqueue(this, position, mGeneration, priority));
+    }
+
+    private void cancelLoad(int position) {
+        RowLoader.Request request = mPending.get(position);
+        if (request != null) {
+            mPending.remove(position);
+            mLoader.cancel(request);
+        }
+    }
+
+    /**
+     * Drops rows that do not match the cursor anymore, called when the
+     * cursor adapter notifies.
+     */
+    private void resetRows() {
+        mGeneration++;
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            mLoader.cancel(mPending.valueAt(i));
+        }
+        mPending.clear();
+        for (int i = mLoaded.size() - 1; i >= 0; i--) {
+            retireRow(mLoaded.valueAt(i));
+        }
+        mLoaded.clear();
+    }
+
+    /**
+     * Keeps at most MAX_LOADED rows, dropping those farthest from the
+     * screen, or from the row just loaded if the screen is unknown.
+     */
+    private void trimLoaded(int position) {
+        while (mLoaded.size() > MAX_LOADED) {
+            int center = mFirstVisible >= 0 ? (mFirstVisible + mLastVisible) / 2 : position;
+            int farthest = 0;
+            for (int i = 1; i < mLoaded.size(); i++) {
+                if (Math.abs(mLoaded.keyAt(i) - center)
+                        > Math.abs(mLoaded.keyAt(farthest) - center)) {
+                    farthest = i;
+                }
+            }
+            retireRow(mLoaded.valueAt(farthest));
+            mLoaded.removeAt(farthest);
+        }
+    }
+
+    private void bindRow(View view, LoadContainer container, T row) {
+        Object previous = container.row;
+        container.row = row;
+        bindView(view, row);
+        if (previous == null || previous == row) {
+            return;
+        }
+        for (int i = mRetired.size() - 1; i >= 0; i--) {
+            if (mRetired.get(i) == previous && !isDrawn(previous)) {
+                recycleRow(mRetired.remove(i));
+                break;
+            }
+        }
+    }
+
+    private boolean isDrawn(Object row) {
+        for (int i = 0; i < mBoundViews.size(); i++) {
+            LoadContainer container =
+                    (LoadContainer) mBoundViews.valueAt(i).getTag(R.id.load_object);
+            if (container != null && container.row == row) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Recycles a row that was dropped from mLoaded. Rows that a view still
+     * draws are only recycled once the view shows something else, reusing
+     * them earlier would change what is on screen.
+     */
+    private void retireRow(T row) {
+        if (row == null) {
+            return;
+        }
+        if (isDrawn(row)) {
+            mRetired.add(row);
+        } else {
+            recycleRow(row);
+        }
+    }
+
+    private void recycleRow(T row) {
+        if (row == null) {
+            return;
+        }
+        synchronized (mRecycled) {
+            if (mRecycled.size() < MAX_RECYCLED) {
+                mRecycled.add(row);
+                return;
+            }
+        }
+        releaseRowObject(row);
+    }
+
+    private T takeRecycledRow() {
+        synchronized (mRecycled) {
+            int count = mRecycled.size();
+            return count > 0 ? mRecycled.remove(count - 1) : null;
+        }
+    }
+
     private T cachedLoadObject() {
         if (mLoadingObject == null) {
             mLoadingObject = getLoadingObject();
@@ -201,8 +399,9 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
     }
 
     public void changeCursor(Cursor cursor) {
-        mLoadHandler.removeCallbacksAndMessages(null);
-        mHandler.removeCallbacksAndMessages(null);
+        if (cursor == null) {
+            mBoundViews.clear();
+        }
         synchronized (mCursorLock) {
             mHasCursor = (cursor != null);
             mCursorAdapter.changeCursor(cursor);
@@ -213,5 +412,12 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
     public abstract void bindView(View view, T object);
     public abstract T getRowObject(Cursor c, T recycleObject);
     public abstract T getLoadingObject();
+
+    /**
+     * Called for a row object that is dropped rather than recycled, nothing
+     * draws it anymore.
+     */
+    public void releaseRowObject(T object) {
+    }
     protected abstract long getItemId(Cursor c);
 }
\ No newline at end of file
@@ -25,6 +25,7 @@ import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.BaseExpandableListAdapter;
 import android.widget.ExpandableListAdapter;
 import android.widget.ExpandableListView;
@@ -44,10 +45,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 public class BookmarkExpandableView extends ExpandableListView
-        implements BreadCrumbView.Controller {
+        implements BreadCrumbView.Controller, AbsListView.OnScrollListener {
 
     public static final String LOCAL_ACCOUNT_NAME = "local";
 
+    // Rows of thumbnails loaded ahead of the scroll direction
+    private static final int PREFETCH_ROWS = 2;
+
     private BookmarkAccountAdapter mAdapter;
     private int mColumnWidth;
     private Context mContext;
@@ -57,6 +61,8 @@ public class BookmarkExpandableView extends ExpandableListView
     private boolean mLongClickable;
     private BreadCrumbView.Controller mBreadcrumbController;
     private int mMaxColumnCount;
+    private int[] mFirstVisible = new int[0];
+    private int[] mLastVisible = new int[0];
 
     public BookmarkExpandableView(Context context) {
         super(context);
@@ -83,6 +89,53 @@ public class BookmarkExpandableView extends ExpandableListView
         setScrollBarStyle(SCROLLBARS_OUTSIDE_OVERLAY);
         mAdapter = new BookmarkAccountAdapter(mContext);
         super.setAdapter(mAdapter);
+        setOnScrollListener(this);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem,
+            int visibleItemCount, int totalItemCount) {
+        updateVisibleRanges(firstVisibleItem, visibleItemCount);
+    }
+
+    /**
+     * Tells each account's adapter which of its bookmarks are on screen,
+     * so thumbnails are loaded for those first.
+     */
+    private void updateVisibleRanges(int firstVisibleItem, int visibleItemCount) {
+        int groups = mAdapter.mChildren.size();
+        if (mFirstVisible.length < groups) {
+            mFirstVisible = new int[groups];
+            mLastVisible = new int[groups];
+        }
+        for (int i = 0; i < groups; i++) {
+            mFirstVisible[i] = Integer.MAX_VALUE;
+            mLastVisible[i] = -1;
+        }
+        int rowCount = mAdapter.mRowCount;
+        for (int i = 0; i < visibleItemCount; i++) {
+            long packed = getExpandableListPosition(firstVisibleItem + i);
+            if (getPackedPositionType(packed) != PACKED_POSITION_TYPE_CHILD) {
+                continue;
+            }
+            int group = getPackedPositionGroup(packed);
+            if (group >= groups) {
+                continue;
+            }
+            int first = getPackedPositionChild(packed) * rowCount;
+            mFirstVisible[group] = Math.min(mFirstVisible[group], first);
+            mLastVisible[group] = Math.max(mLastVisible[group], first + rowCount - 1);
+        }
+        for (int i = 0; i < groups; i++) {
+            BrowserBookmarksAdapter adapter = mAdapter.mChildren.get(i);
+            adapter.setPrefetchWindow(rowCount * PREFETCH_ROWS);
+            adapter.setVisibleRange(mFirstVisible[i],
+                    Math.min(mLastVisible[i], adapter.getCount() - 1));
+        }
     }
 
     @Override
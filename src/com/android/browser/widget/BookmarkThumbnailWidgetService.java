@@ -21,24 +21,24 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.MergeCursor;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapFactory.Options;
 import android.net.Uri;
 import android.os.Binder;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Bookmarks;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 import android.widget.RemoteViews;
 import android.widget.RemoteViewsService;
 
 import com.android.browser.BrowserActivity;
 import com.android.browser.R;
 import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.BrowserProvider2.ImageHashes;
 
 import java.io.File;
 import java.io.FilenameFilter;
@@ -55,22 +55,32 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
     static final String STATE_CURRENT_FOLDER = "current_folder";
     static final String STATE_ROOT_FOLDER = "root_folder";
 
+    // Images are read from WidgetImageCache, only their hashes are queried
     private static final String[] PROJECTION = new String[] {
             BrowserContract.Bookmarks._ID,
             BrowserContract.Bookmarks.TITLE,
             BrowserContract.Bookmarks.URL,
-            BrowserContract.Bookmarks.FAVICON,
             BrowserContract.Bookmarks.IS_FOLDER,
             BrowserContract.Bookmarks.POSITION, /* needed for order by */
-            BrowserContract.Bookmarks.THUMBNAIL,
-            BrowserContract.Bookmarks.PARENT};
+            BrowserContract.Bookmarks.PARENT,
+            ImageHashes.FAVICON_HASH,
+            ImageHashes.THUMBNAIL_HASH};
     private static final int BOOKMARK_INDEX_ID = 0;
     private static final int BOOKMARK_INDEX_TITLE = 1;
     private static final int BOOKMARK_INDEX_URL = 2;
-    private static final int BOOKMARK_INDEX_FAVICON = 3;
-    private static final int BOOKMARK_INDEX_IS_FOLDER = 4;
-    private static final int BOOKMARK_INDEX_THUMBNAIL = 6;
-    private static final int BOOKMARK_INDEX_PARENT_ID = 7;
+    private static final int BOOKMARK_INDEX_IS_FOLDER = 3;
+    private static final int BOOKMARK_INDEX_PARENT_ID = 5;
+    private static final int BOOKMARK_INDEX_FAVICON_HASH = 6;
+    private static final int BOOKMARK_INDEX_THUMBNAIL_HASH = 7;
+
+    private static final String[] IMAGE_PROJECTION = new String[] {
+            BrowserContract.Bookmarks.FAVICON,
+            BrowserContract.Bookmarks.THUMBNAIL};
+    private static final int IMAGE_INDEX_FAVICON = 0;
+    private static final int IMAGE_INDEX_THUMBNAIL = 1;
+
+    // Folders whose cursors are kept for going back and forth
+    private static final int MAX_CACHED_FOLDERS = 4;
 
     @Override
     public RemoteViewsFactory onGetViewFactory(Intent intent) {
@@ -166,10 +176,38 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
         private long mCurrentFolder = -1;
         private long mRootFolder = -1;
         private SharedPreferences mPreferences = null;
+        private WidgetImageCache mImages;
+        private int mThumbnailHeight;
+        private int mFaviconHeight;
+        // Bumped by any change to the provider, cached cursors from before
+        // are not used again
+        private volatile int mChanges;
+        private int mCachedChanges;
+        private LruCache<Long, Cursor> mFolders =
+                new LruCache<Long, Cursor>(MAX_CACHED_FOLDERS) {
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Cursor oldValue,
+                    Cursor newValue) {
+                if (oldValue != mBookmarks) {
+                    oldValue.close();
+                }
+            }
+        };
+        private ContentObserver mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mChanges++;
+            }
+        };
 
         public BookmarkFactory(Context context, int widgetId) {
             mContext = context.getApplicationContext();
             mWidgetId = widgetId;
+            mImages = new WidgetImageCache(mContext);
+            mThumbnailHeight = mContext.getResources()
+                    .getDimensionPixelSize(R.dimen.widgetThumbnailHeight);
+            mFaviconHeight = mContext.getResources()
+                    .getDimensionPixelSize(R.dimen.favicon_size);
         }
 
         void syncState() {
@@ -247,24 +285,34 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
                     views.setImageViewResource(R.id.thumb, R.drawable.thumb_bookmark_widget_folder_holo);
                 }
             } else {
-                // RemoteViews require a valid bitmap config
-                Options options = new Options();
-                options.inPreferredConfig = Config.ARGB_8888;
-                Bitmap thumbnail = null, favicon = null;
-                byte[] blob = mBookmarks.getBlob(BOOKMARK_INDEX_THUMBNAIL);
+                String thumbnailHash = mBookmarks.getString(BOOKMARK_INDEX_THUMBNAIL_HASH);
+                String faviconHash = mBookmarks.getString(BOOKMARK_INDEX_FAVICON_HASH);
+                Bitmap thumbnail = thumbnailHash != null
+                        ? mImages.get(thumbnailHash, mThumbnailHeight) : null;
+                Bitmap favicon = faviconHash != null
+                        ? mImages.get(faviconHash, mFaviconHeight) : null;
+                if ((thumbnail == null && thumbnailHash != null)
+                        || (favicon == null && faviconHash != null)) {
+                    byte[][] images = queryImages(mBookmarks.getLong(BOOKMARK_INDEX_ID));
+                    if (thumbnail == null && thumbnailHash != null
+                            && images[IMAGE_INDEX_THUMBNAIL] != null) {
+                        thumbnail = mImages.put(thumbnailHash,
+                                images[IMAGE_INDEX_THUMBNAIL], mThumbnailHeight);
+                    }
+                    if (favicon == null && faviconHash != null
+                            && images[IMAGE_INDEX_FAVICON] != null) {
+                        favicon = mImages.put(faviconHash,
+                                images[IMAGE_INDEX_FAVICON], mFaviconHeight);
+                    }
+                }
                 views.setDrawableParameters(R.id.thumb, true, 255, -1, null, -1);
-                if (blob != null && blob.length > 0) {
-                    thumbnail = BitmapFactory.decodeByteArray(
-                            blob, 0, blob.length, options);
+                if (thumbnail != null) {
                     views.setImageViewBitmap(R.id.thumb, thumbnail);
                 } else {
                     views.setImageViewResource(R.id.thumb,
                             R.drawable.browser_thumbnail);
                 }
-                blob = mBookmarks.getBlob(BOOKMARK_INDEX_FAVICON);
-                if (blob != null && blob.length > 0) {
-                    favicon = BitmapFactory.decodeByteArray(
-                            blob, 0, blob.length, options);
+                if (favicon != null) {
                     views.setImageViewBitmap(R.id.favicon, favicon);
                 } else {
                     views.setImageViewResource(R.id.favicon,
@@ -299,16 +347,48 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
             return false;
         }
 
+        /**
+         * Reads a bookmark's images, for making renditions the image cache
+         * does not have yet.
+         */
+        private byte[][] queryImages(long id) {
+            byte[][] images = new byte[IMAGE_PROJECTION.length][];
+            // Called on behalf of the launcher, query as ourselves
+            long token = Binder.clearCallingIdentity();
+            Cursor c;
+            try {
+                c = mContext.getContentResolver().query(
+                        ContentUris.withAppendedId(BrowserContract.Bookmarks.CONTENT_URI, id),
+                        IMAGE_PROJECTION, null, null, null);
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+            if (c == null) {
+                return images;
+            }
+            try {
+                if (c.moveToFirst()) {
+                    for (int i = 0; i < images.length; i++) {
+                        images[i] = c.getBlob(i);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            return images;
+        }
+
         @Override
         public void onCreate() {
+            mContext.getContentResolver().registerContentObserver(
+                    BrowserContract.Bookmarks.CONTENT_URI, true, mObserver);
         }
 
         @Override
         public void onDestroy() {
-            if (mBookmarks != null) {
-                mBookmarks.close();
-                mBookmarks = null;
-            }
+            mContext.getContentResolver().unregisterContentObserver(mObserver);
+            mBookmarks = null;
+            mFolders.evictAll();
             deleteWidgetState(mContext, mWidgetId);
         }
 
@@ -327,14 +407,21 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
         }
 
         private void resetBookmarks() {
-            if (mBookmarks != null) {
-                mBookmarks.close();
-                mBookmarks = null;
-            }
+            // Still cached for when the widget comes back to this folder
+            mBookmarks = null;
         }
 
         void loadBookmarks() {
             resetBookmarks();
+            int changes = mChanges;
+            if (changes != mCachedChanges) {
+                mFolders.evictAll();
+                mCachedChanges = changes;
+            }
+            mBookmarks = mFolders.get(mCurrentFolder);
+            if (mBookmarks != null) {
+                return;
+            }
 
             Uri uri = ContentUris.withAppendedId(
                     BrowserContract.Bookmarks.CONTENT_URI_DEFAULT_FOLDER,
@@ -349,6 +436,9 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
                         null, null, null);
                 mBookmarks = new MergeCursor(new Cursor[] { c, mBookmarks });
             }
+            if (mBookmarks != null) {
+                mFolders.put(mCurrentFolder, mBookmarks);
+            }
         }
     }
 
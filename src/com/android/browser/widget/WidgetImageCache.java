@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.widget;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Widget sized renditions of bookmark images, kept on disk. Files are named
+ * after the hash of the source image, see
+ * {@link com.android.browser.provider.BrowserProvider2.ImageHashes}, and
+ * the height they were scaled to, so a rendition is only made again when
+ * the image changes. The least recently used files are pruned.
+ */
+class WidgetImageCache {
+
+    private static final String TAG = "WidgetImageCache";
+
+    private static final String DIRECTORY = "widget_images";
+    private static final String SUFFIX = ".png";
+    private static final int MAX_FILES = 400;
+    private static final int PRUNE_TO_FILES = 300;
+    // Only needs to be roughly right for pruning, so hits don't write to
+    // the file system each time
+    private static final long TOUCH_INTERVAL = 24 * 60 * 60 * 1000;
+
+    private final File mDirectory;
+
+    WidgetImageCache(Context context) {
+        mDirectory = new File(context.getCacheDir(), DIRECTORY);
+    }
+
+    /**
+     * Returns the rendition of the image with the given hash, or null if
+     * there is none yet.
+     */
+    Bitmap get(String hash, int height) {
+        File file = getFile(hash, height);
+        if (!file.exists()) {
+            return null;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap == null) {
+            file.delete();
+            return null;
+        }
+        // Pruning goes by modification time
+        long now = System.currentTimeMillis();
+        if (now - file.lastModified() > TOUCH_INTERVAL) {
+            file.setLastModified(now);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Scales the image down to the given height, keeping its aspect ratio,
+     * and stores the result. Returns the rendition, or null if the data
+     * could not be decoded.
+     */
+    Bitmap put(String hash, byte[] data, int height) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (opts.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        if (bitmap == null) {
+            return null;
+        }
+        if (bitmap.getHeight() > height) {
+            int width = Math.max(1, bitmap.getWidth() * height / bitmap.getHeight());
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+        write(getFile(hash, height), bitmap);
+        return bitmap;
+    }
+
+    private void write(File file, Bitmap bitmap) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return;
+        }
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file, e);
+            temp.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Already failed
+                }
+            }
+        }
+        prune();
+    }
+
+    private void prune() {
+        File[] files = mDirectory.listFiles();
+        if (files == null || files.length <= MAX_FILES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length - PRUNE_TO_FILES; i++) {
+            files[i].delete();
+        }
+    }
+
+    private File getFile(String hash, int height) {
+        return new File(mDirectory, hash + "_" + height + SUFFIX);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.BrowserContract.History;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Measures history lookups through the provider while another thread keeps
+ * the database busy with history writes, the way page loads do. Only logs
+ * the p50/p95/p99 latencies, idle and while writing, to compare builds.
+ */
+@LargeTest
+public class BP2ContentionPerfTests extends BP2TestCaseHelper {
+
+    private static final String PERFTAG = "BP2-ContentionPerf";
+
+    static final int HISTORY_ROWS = 2000;
+    static final int WRITE_BATCH = 200;
+    static final int READS = 500;
+
+    static final String[] PROJECTION = new String[] {
+            History._ID, History.VISITS,
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ContentValues[] values = new ContentValues[HISTORY_ROWS];
+        for (int i = 0; i < HISTORY_ROWS; i++) {
+            values[i] = historyValues(i);
+        }
+        getMockContentResolver().bulkInsert(History.CONTENT_URI, values);
+    }
+
+    static ContentValues historyValues(int i) {
+        ContentValues values = new ContentValues();
+        values.put(History.URL, "http://site" + (i % 97) + ".example.com/" + i);
+        values.put(History.TITLE, "Page " + i);
+        values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
+        values.put(History.VISITS, 1);
+        return values;
+    }
+
+    public void testReadLatencyUnderWrites() throws Exception {
+        long[] idle = timeReads();
+
+        final ArrayList<Long> writes = new ArrayList<Long>();
+        final boolean[] stop = new boolean[1];
+        Thread writer = new Thread("BP2Writer") {
+            @Override
+            public void run() {
+                ContentResolver cr = getMockContentResolver();
+                int next = HISTORY_ROWS;
+                while (true) {
+                    synchronized (stop) {
+                        if (stop[0]) {
+                            return;
+                        }
+                    }
+                    ContentValues[] values = new ContentValues[WRITE_BATCH];
+                    for (int i = 0; i < WRITE_BATCH; i++) {
+                        values[i] = historyValues(next++);
+                    }
+                    long start = SystemClock.uptimeMillis();
+                    cr.bulkInsert(History.CONTENT_URI, values);
+                    synchronized (writes) {
+                        writes.add(SystemClock.uptimeMillis() - start);
+                    }
+                }
+            }
+        };
+        writer.start();
+        long[] busy;
+        try {
+            busy = timeReads();
+        } finally {
+            synchronized (stop) {
+                stop[0] = true;
+            }
+            writer.join();
+        }
+
+        long[] writeTimes;
+        synchronized (writes) {
+            writeTimes = new long[writes.size()];
+            for (int i = 0; i < writeTimes.length; i++) {
+                writeTimes[i] = writes.get(i);
+            }
+        }
+        Arrays.sort(writeTimes);
+        Log.i(PERFTAG, "reads idle: " + percentiles(idle));
+        Log.i(PERFTAG, "reads while writing: " + percentiles(busy));
+        Log.i(PERFTAG, writeTimes.length + " write transactions of " + WRITE_BATCH
+                + " rows: " + percentiles(writeTimes));
+        assertTrue("Writer never committed", writeTimes.length > 0);
+    }
+
+    long[] timeReads() {
+        ContentResolver cr = getMockContentResolver();
+        long[] times = new long[READS];
+        for (int i = 0; i < READS; i++) {
+            String url = "http://site" + (i % 97) + ".example.com/" + (i * 7 % HISTORY_ROWS);
+            long start = SystemClock.uptimeMillis();
+            Cursor c = cr.query(History.CONTENT_URI, PROJECTION, History.URL + "=?",
+                    new String[] { url }, null);
+            try {
+                assertTrue(c.moveToFirst());
+            } finally {
+                c.close();
+            }
+            times[i] = SystemClock.uptimeMillis() - start;
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    /**
+     * Takes sorted times.
+     */
+    static long percentile(long[] times, int percentile) {
+        if (times.length == 0) {
+            return 0;
+        }
+        return times[Math.min(times.length - 1, times.length * percentile / 100)];
+    }
+
+    static String percentiles(long[] times) {
+        return "p50=" + percentile(times, 50) + "ms p95=" + percentile(times, 95)
+                + "ms p99=" + percentile(times, 99) + "ms max="
+                + (times.length > 0 ? times[times.length - 1] : 0) + "ms";
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.History;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures the per-navigation url lookups against a synthetic history,
+ * with and without the url indices.
+ */
+@LargeTest
+public class BP2IndexPerfTests extends BP2TestCaseHelper {
+
+    private static final String PERFTAG = "BP2-IndexPerf";
+
+    static final int HISTORY_ROWS = 100000;
+    static final int LOOKUPS = 200;
+
+    SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = getProvider().getDatabaseHelper().getWritableDatabase();
+        SQLiteStatement insert = mDb.compileStatement("INSERT INTO history ("
+                + History.URL + ", " + History.TITLE + ", "
+                + History.DATE_LAST_VISITED + ", " + History.VISITS
+                + ") VALUES (?, ?, ?, 1)");
+        long now = System.currentTimeMillis();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < HISTORY_ROWS; i++) {
+                insert.bindString(1, urlFor(i));
+                insert.bindString(2, "Page " + i);
+                insert.bindLong(3, now - i * 1000L);
+                insert.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            insert.close();
+        }
+    }
+
+    static String urlFor(int i) {
+        return "http://site" + (i % 997) + ".example.com/path/" + i;
+    }
+
+    public void testHistoryUrlLookup() {
+        String sql = "SELECT _id, " + History.VISITS + " FROM history WHERE "
+                + History.URL + "=?";
+        long indexed = timeLookups(sql);
+        mDb.execSQL("DROP INDEX historyUrlIndex");
+        long scanned = timeLookups(sql);
+        Log.i(PERFTAG, "history url lookup: indexed=" + indexed
+                + "ms full scan=" + scanned + "ms (" + LOOKUPS + " lookups)");
+        assertTrue("Index did not help: " + indexed + " vs " + scanned,
+                indexed < scanned);
+    }
+
+    public void testBookmarkStatusLookup() {
+        String sql = "SELECT " + Bookmarks.URL + " FROM bookmarks WHERE "
+                + Bookmarks.URL + "=? AND " + Bookmarks.IS_DELETED + "=0";
+        long indexed = timeLookups(sql);
+        Log.i(PERFTAG, "bookmark status lookup: " + indexed + "ms ("
+                + LOOKUPS + " lookups)");
+        assertPlanUsesIndex(sql, "bookmarksUrlIndex");
+    }
+
+    public void testHistoryDateOrder() {
+        assertPlanUsesIndex("SELECT _id FROM history ORDER BY "
+                + History.DATE_LAST_VISITED + " DESC LIMIT 10", "historyDateIndex");
+    }
+
+    public void testHistoryPage() {
+        // The history page loads one day at a time, newest first
+        assertPlanUsesIndex("SELECT _id FROM history WHERE " + History.VISITS + " > 0 AND "
+                + History.DATE_LAST_VISITED + " > 0 AND " + History.DATE_LAST_VISITED
+                + " <= 1000 ORDER BY " + History.DATE_LAST_VISITED + " DESC, _id DESC "
+                + "LIMIT 100,50", "historyDateIndex");
+    }
+
+    long timeLookups(String sql) {
+        long start = SystemClock.uptimeMillis();
+        for (int i = 0; i < LOOKUPS; i++) {
+            Cursor c = mDb.rawQuery(sql, new String[] { urlFor(i * 487) });
+            try {
+                c.moveToFirst();
+            } finally {
+                c.close();
+            }
+        }
+        return SystemClock.uptimeMillis() - start;
+    }
+
+    void assertPlanUsesIndex(String sql, String index) {
+        String[] args = sql.contains("?") ? new String[] { urlFor(0) } : null;
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            StringBuilder plan = new StringBuilder();
+            while (c.moveToNext()) {
+                plan.append(c.getString(c.getColumnCount() - 1)).append('\n');
+            }
+            assertTrue("Expected " + index + " in plan:\n" + plan,
+                    plan.indexOf(index) >= 0);
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -16,6 +16,9 @@
 
 package com.android.browser.tests;
 
+import com.android.browser.provider.BrowserProvider2.ImageHashes;
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+import com.android.browser.provider.BrowserProvider2.Visits;
 import com.android.browser.tests.utils.BP2TestCaseHelper;
 
 import android.content.ContentUris;
@@ -24,11 +27,14 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.BrowserContract;
+import android.provider.BrowserContract.History;
 import android.provider.BrowserContract.Images;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
 @SmallTest
 public class BP2ProviderTests extends BP2TestCaseHelper {
@@ -56,6 +62,102 @@ public class BP2ProviderTests extends BP2TestCaseHelper {
         assertTrue(updateBookmark(Images.CONTENT_URI, values));
     }
 
+    public void testImagesSharedByHash() {
+        insertBookmark("http://stub1.com/a", "stub a");
+        insertBookmark("http://stub1.com/b", "stub b");
+        Bitmap bitmap = Bitmap.createBitmap(16, 16, Config.ARGB_8888);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+        ContentValues values = new ContentValues();
+        values.put(Images.FAVICON, os.toByteArray());
+        values.put(Images.URL, "http://stub1.com/a");
+        assertEquals(1, getMockContentResolver().update(Images.CONTENT_URI, values, null, null));
+        values.put(Images.URL, "http://stub1.com/b");
+        assertEquals(1, getMockContentResolver().update(Images.CONTENT_URI, values, null, null));
+        // Same favicon again, nothing to write
+        assertEquals(0, getMockContentResolver().update(Images.CONTENT_URI, values, null, null));
+        Cursor c = getMockContentResolver().query(Images.CONTENT_URI,
+                new String[] { ImageHashes.FAVICON_HASH, Images.FAVICON },
+                Images.URL + " LIKE 'http://stub1.com/%'", null, null);
+        try {
+            assertEquals(2, c.getCount());
+            c.moveToFirst();
+            String hash = c.getString(0);
+            assertNotNull(hash);
+            assertNotNull(c.getBlob(1));
+            c.moveToNext();
+            assertEquals(hash, c.getString(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testRecordVisits() {
+        String url = "http://stub1.com";
+        Uri inserted = insertHistory(url, "stub 1");
+        long id = ContentUris.parseId(inserted);
+        Bundle result = recordVisits(new String[] { url, "http://stub2.com", "http://stub3.com" },
+                new int[] { 2, 1, 0 }, new String[] { null, "stub 2", "stub 3" });
+        long[] ids = result.getLongArray(Visits.RESULT_IDS);
+        assertEquals(id, ids[0]);
+        assertTrue(ids[1] > 0);
+        // Titles alone don't create history
+        assertEquals(-1, ids[2]);
+        recordVisits(new String[] { "http://stub2.com" }, new int[] { 1 },
+                new String[] { null });
+
+        Cursor c = getMockContentResolver().query(History.CONTENT_URI,
+                new String[] { History.URL, History.VISITS, History.TITLE },
+                null, null, History.URL);
+        try {
+            assertEquals(2, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(url, c.getString(0));
+            assertEquals(2, c.getInt(1));
+            assertEquals("stub 1", c.getString(2));
+            assertTrue(c.moveToNext());
+            assertEquals(2, c.getInt(1));
+            assertEquals("stub 2", c.getString(2));
+        } finally {
+            c.close();
+        }
+    }
+
+    Bundle recordVisits(String[] urls, int[] visits, String[] titles) {
+        long[] dates = new long[urls.length];
+        Arrays.fill(dates, System.currentTimeMillis());
+        Bundle extras = new Bundle();
+        extras.putStringArray(Visits.EXTRA_URLS, urls);
+        extras.putIntArray(Visits.EXTRA_VISITS, visits);
+        extras.putLongArray(Visits.EXTRA_DATES, dates);
+        extras.putStringArray(Visits.EXTRA_TITLES, titles);
+        return getMockContentResolver().call(BrowserContract.AUTHORITY_URI,
+                Visits.METHOD_RECORD, null, extras);
+    }
+
+    public void testOmniboxSuggestionsFilter() {
+        insertHistory("http://www.example.com/foo/bar", "Example Domain");
+        insertHistory("http://other.org/", "Something else");
+        insertBookmark("https://examples.net/", "Bookmarked");
+        assertEquals(2, countOmniboxSuggestions("exam"));
+        assertEquals(1, countOmniboxSuggestions("https://www.example.com/fo"));
+        assertEquals(1, countOmniboxSuggestions("something"));
+        assertEquals(0, countOmniboxSuggestions("nomatch"));
+        assertEquals(0, countOmniboxSuggestions("://"));
+    }
+
+    private int countOmniboxSuggestions(String filter) {
+        Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(OmniboxSuggestions.QUERY_PARAMETER_FILTER, filter)
+                .build();
+        Cursor c = getMockContentResolver().query(uri, null, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
     public void testIsValidParentNullAccount() {
         doTestIsValidParent(null, null);
     }
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.R;
+import com.android.browser.homepages.Template;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares rendering the most visited page with the compiled Template
+ * against the entity tree it replaced, kept below as LegacyTemplate. Both
+ * write to /dev/null, so every write costs a system call like it does on
+ * the pipe the page is served through.
+ */
+@LargeTest
+public class TemplatePerfTests extends AndroidTestCase {
+
+    private static final String PERFTAG = "TemplatePerf";
+
+    static final int ROWS = 12;
+    static final int THUMBNAIL_BYTES = 4 * 1024;
+    static final int WARMUP = 20;
+    static final int RENDERS = 200;
+
+    static final String[] COLUMNS = new String[] { "url", "title", "thumbnail" };
+
+    MatrixCursor mCursor;
+    OutputStream mDevNull;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCursor = new MatrixCursor(COLUMNS);
+        byte[] thumbnail = new byte[THUMBNAIL_BYTES];
+        for (int i = 0; i < ROWS; i++) {
+            thumbnail[0] = (byte) i;
+            mCursor.addRow(new Object[] {
+                    "http://site" + i + ".example.com/?a=1&b=2", "Site <" + i + ">",
+                    thumbnail.clone() });
+        }
+        mDevNull = new FileOutputStream("/dev/null");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDevNull.close();
+        mCursor.close();
+        super.tearDown();
+    }
+
+    public void testRenderMostVisited() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        renderCompiled(out);
+        String page = out.toString("utf-8");
+        for (int i = 0; i < ROWS; i++) {
+            assertTrue(page.contains("Site &lt;" + i + "&gt;"));
+        }
+        assertFalse(page.contains("<%"));
+    }
+
+    public void testRenderThroughput() throws IOException {
+        LegacyTemplate legacy = new LegacyTemplate(readRaw(R.raw.most_visited));
+        for (int i = 0; i < WARMUP; i++) {
+            renderLegacy(legacy, mDevNull);
+            renderCompiled(mDevNull);
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < RENDERS; i++) {
+            renderLegacy(legacy, mDevNull);
+        }
+        long legacyNanos = SystemClock.elapsedRealtimeNanos() - start;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < RENDERS; i++) {
+            renderCompiled(mDevNull);
+        }
+        long compiledNanos = SystemClock.elapsedRealtimeNanos() - start;
+        Log.i(PERFTAG, "entity tree: " + rendersPerSecond(legacyNanos) + " renders/s, "
+                + "compiled: " + rendersPerSecond(compiledNanos) + " renders/s");
+    }
+
+    static long rendersPerSecond(long nanos) {
+        return nanos > 0 ? RENDERS * 1000000000L / nanos : 0;
+    }
+
+    void renderCompiled(OutputStream out) throws IOException {
+        Template t = Template.getCachedTemplate(getContext(), R.raw.most_visited);
+        t.assignLoop("most_visited", new Template.CursorListEntityWrapper(mCursor) {
+            @Override
+            public void writeValue(OutputStream stream, String key) throws IOException {
+                writeRowValue(getCursor(), stream, key);
+            }
+        });
+        t.write(out);
+    }
+
+    void renderLegacy(LegacyTemplate t, OutputStream out) throws IOException {
+        t.write(out, mCursor);
+    }
+
+    /**
+     * What RequestHandler writes for each most visited row.
+     */
+    static void writeRowValue(Cursor cursor, OutputStream stream, String key)
+            throws IOException {
+        if (key.equals("url")) {
+            stream.write(TextUtils.htmlEncode(cursor.getString(0)).getBytes());
+        } else if (key.equals("title")) {
+            stream.write(TextUtils.htmlEncode(cursor.getString(1)).getBytes());
+        } else if (key.equals("thumbnail")) {
+            stream.write("data:image/png;base64,".getBytes());
+            stream.write(Base64.encode(cursor.getBlob(2), Base64.DEFAULT));
+        }
+    }
+
+    String readRaw(int id) throws IOException {
+        InputStream ins = getContext().getResources().openRawResource(id);
+        try {
+            byte[] buf = new byte[ins.available()];
+            ins.read(buf);
+            return new String(buf, "utf-8");
+        } finally {
+            ins.close();
+        }
+    }
+
+    /**
+     * The template engine before it was compiled: a list of entities, each
+     * writing to the stream on its own, with loops parsed into nested
+     * templates. Constants are left in, they are plain text to it.
+     */
+    static class LegacyTemplate {
+
+        interface Entity {
+            void write(OutputStream stream, Cursor cursor) throws IOException;
+        }
+
+        final ArrayList<Entity> mEntities = new ArrayList<Entity>();
+
+        LegacyTemplate(String template) {
+            final Pattern pattern = Pattern.compile("<%([=\\{])\\s*(\\w+)\\s*%>");
+            Matcher m = pattern.matcher(template);
+            int start = 0;
+            while (m.find()) {
+                addString(template.substring(start, m.start()));
+                final String type = m.group(1);
+                final String name = m.group(2);
+                if (type.equals("=")) {
+                    mEntities.add(new Entity() {
+                        @Override
+                        public void write(OutputStream stream, Cursor cursor)
+                                throws IOException {
+                            writeRowValue(cursor, stream, name);
+                        }
+                    });
+                } else if (type.equals("{")) {
+                    Pattern p = Pattern.compile("<%\\}\\s*" + Pattern.quote(name) + "\\s*%>");
+                    Matcher end_m = p.matcher(template);
+                    if (end_m.find(m.end())) {
+                        m.region(end_m.end(), template.length());
+                        final LegacyTemplate sub = new LegacyTemplate(
+                                template.substring(m.end(), end_m.start()));
+                        mEntities.add(new Entity() {
+                            @Override
+                            public void write(OutputStream stream, Cursor cursor)
+                                    throws IOException {
+                                cursor.moveToPosition(-1);
+                                while (cursor.moveToNext()) {
+                                    sub.write(stream, cursor);
+                                }
+                            }
+                        });
+                        start = end_m.end();
+                        continue;
+                    }
+                }
+                start = m.end();
+            }
+            addString(template.substring(start));
+        }
+
+        void addString(String value) {
+            if (value.length() > 0) {
+                final byte[] bytes = value.getBytes();
+                mEntities.add(new Entity() {
+                    @Override
+                    public void write(OutputStream stream, Cursor cursor) throws IOException {
+                        stream.write(bytes);
+                    }
+                });
+            }
+        }
+
+        void write(OutputStream stream, Cursor cursor) throws IOException {
+            for (Entity entity : mEntities) {
+                entity.write(stream, cursor);
+            }
+        }
+    }
+}